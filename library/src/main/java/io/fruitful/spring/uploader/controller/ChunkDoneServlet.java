@@ -1,9 +1,21 @@
 package io.fruitful.spring.uploader.controller;
 
 import io.fruitful.spring.uploader.dto.*;
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
 import io.fruitful.spring.uploader.enumeration.FileSupportEnum;
+import io.fruitful.spring.uploader.enumeration.MediaJobStatus;
+import io.fruitful.spring.uploader.exception.MediaJobRejectedException;
 import io.fruitful.spring.uploader.exception.MergePartsException;
+import io.fruitful.spring.uploader.service.ChunkManifest;
+import io.fruitful.spring.uploader.service.ContentIndex;
+import io.fruitful.spring.uploader.service.GroupCommitSyncer;
 import io.fruitful.spring.uploader.service.MediaHelperService;
+import io.fruitful.spring.uploader.service.MediaJobQueue;
+import io.fruitful.spring.uploader.service.PartialFileAssembler;
+import io.fruitful.spring.uploader.service.UploadExecutors;
+import io.fruitful.spring.uploader.service.UploadLockRegistry;
+import io.fruitful.spring.uploader.service.UploadPartRegistry;
+import io.fruitful.spring.uploader.util.ChecksumHelper;
 import io.fruitful.spring.uploader.util.FileUtils;
 import io.fruitful.spring.uploader.util.StringHelper;
 import jakarta.servlet.ServletContext;
@@ -14,6 +26,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.fileupload2.jakarta.JakartaServletFileUpload;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
@@ -24,10 +38,20 @@ public class ChunkDoneServlet extends HttpServlet {
 	@Serial
 	private static final long serialVersionUID = -1551073211800080799L;
 	private static final int SUCCESS_RESPONSE_CODE = 200;
+	private static final int DEFAULT_MEDIA_JOB_QUEUE_CAPACITY = 1000;
 
 	private final File uploadDir;
 	private final File tempDir;
 	private final ChunkDoneConfig config;
+	// finalization of different uploads runs in parallel, repeated calls for the same upload are serialized
+	private final UploadLockRegistry finalizeLocks = new UploadLockRegistry();
+	// null when media is processed before responding
+	private final MediaJobQueue mediaJobQueue;
+	// null when uploads are not deduplicated
+	private final ContentIndex contentIndex;
+	// null unless finalized uploads are synced in batches
+	private final GroupCommitSyncer groupCommitSyncer;
+	private final UploadPartRegistry partRegistry = UploadPartRegistry.getDefault();
 
 	public ChunkDoneServlet(ChunkDoneConfig chunkDoneConfig) {
 		this.config = chunkDoneConfig;
@@ -35,6 +59,57 @@ public class ChunkDoneServlet extends HttpServlet {
 		tempDir = new File(Optional.ofNullable(config.getTemporaryFolder()).orElse(""));
 		FileUtils.mkDir(uploadDir);
 		FileUtils.mkDir(tempDir);
+		FileSupportEnum.register(config.getAdditionalFileTypes());
+		contentIndex = StringHelper.hasText(config.getContentIndexFolder()) ?
+		               new ContentIndex(new File(config.getContentIndexFolder())) : null;
+		groupCommitSyncer = config.getDurabilityPolicy() == DurabilityPolicy.GROUP_COMMIT ?
+		                    new GroupCommitSyncer(config.getGroupCommitInterval()) : null;
+		mediaJobQueue = createMediaJobQueue();
+	}
+
+	private MediaJobQueue createMediaJobQueue() {
+		if (config.getMediaJobWorkers() <= 0) {
+			List<TranscodeProfile> profiles = config.getTranscodeProfiles();
+			if (config.getStreamingFormat() != null || profiles != null && !profiles.isEmpty()) {
+				// full encodes would hold chunk-done open for as long as the video takes to encode
+				throw new IllegalStateException("transcodeProfiles and streamingFormat require mediaJobWorkers");
+			}
+			return null;
+		}
+		int capacity = config.getMediaJobQueueCapacity() > 0 ? config.getMediaJobQueueCapacity() :
+		               DEFAULT_MEDIA_JOB_QUEUE_CAPACITY;
+		MediaJobQueue queue = new MediaJobQueue(tempDir, config.getMediaJobWorkers(), capacity, job -> {
+			try {
+				return processMediaJob(job);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e.getMessage(), e);
+			}
+		}, config.getMediaJobStatusHandler());
+		try {
+			queue.start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to start media job queue", e);
+		}
+		return queue;
+	}
+
+	/**
+	 * Index of the deduplicated uploads, where media processed in the background is
+	 * {@link ContentIndex#update updated} once done. Null when no content index folder is configured.
+	 */
+	public ContentIndex getContentIndex() {
+		return contentIndex;
+	}
+
+	@Override
+	public void destroy() {
+		if (mediaJobQueue != null) {
+			mediaJobQueue.shutdown();
+		}
+		if (groupCommitSyncer != null) {
+			groupCommitSyncer.shutdown();
+		}
+		super.destroy();
 	}
 
 	@Override
@@ -44,6 +119,10 @@ public class ChunkDoneServlet extends HttpServlet {
 
 	@Override
 	public void doPost(HttpServletRequest req, HttpServletResponse resp) {
+		UploadExecutors.dispatch(req, resp, config.getExecutionMode(), this::handlePost);
+	}
+
+	private void handlePost(HttpServletRequest req, HttpServletResponse resp) {
 		resp.setContentType("application/json");
 		resp.setStatus(SUCCESS_RESPONSE_CODE);
 		try {
@@ -52,7 +131,8 @@ public class ChunkDoneServlet extends HttpServlet {
 			if (JakartaServletFileUpload.isMultipartContent(req)) {
 				ServletContext servletContext = getServletContext();
 				MultipartUploadParser multipartUploadParser = new MultipartUploadParser(req, tempDir, servletContext,
-				                                                                        false);
+				                                                                        false,
+				                                                                        config.getMultipartThreshold());
 				requestParser = RequestParser.getInstance(req, multipartUploadParser);
 				name = requestParser.getOriginalFilename();
 			} else {
@@ -62,12 +142,14 @@ public class ChunkDoneServlet extends HttpServlet {
 
 			File dir = new File(uploadDir, requestParser.getUuid());
 			FileUtils.mkDir(dir);
-			String mediaId = chunkDone(requestParser, dir, name);
+			MediaJob job = chunkDone(requestParser, dir, name);
 
-			if (mediaId == null) {
+			if (job != null && job.getStatus() == MediaJobStatus.QUEUED) {
+				writeMediaJobResponse(resp.getWriter(), job.getJobId());
+			} else if (job == null || job.getMediaId() == null) {
 				writeResponse(resp.getWriter(), requestParser.generateError() ? "Generated error" : null);
 			} else {
-				writeChunkDoneResponse(resp.getWriter(), mediaId);
+				writeChunkDoneResponse(resp.getWriter(), job.getMediaId());
 			}
 
 		} catch (Exception e) {
@@ -80,82 +162,223 @@ public class ChunkDoneServlet extends HttpServlet {
 		}
 	}
 
-	private String chunkDone(RequestParser request, File dir, String outputFileName)
-			throws IOException, MergePartsException {
+	private MediaJob chunkDone(RequestParser request, File dir, String outputFileName)
+			throws IOException, MergePartsException, MediaJobRejectedException {
 		UnaryOperator<String> mediaExistedHandler = config.getMediaExistedHandler();
 		String requestUuid = request.getUuid();
 		if (mediaExistedHandler != null) {
 			String mediaId = mediaExistedHandler.apply(requestUuid);
 			if (StringHelper.hasText(mediaId)) {
-				return mediaId;
+				return completedJob(mediaId);
 			}
 		}
 
-		FilenameFilter acceptedFilter = (dir1, name) -> {
-			String lowercaseName = name.toLowerCase();
-			return lowercaseName.startsWith(requestUuid);
-		};
-		synchronized (this) {
-			String[] dirs = dir.list(acceptedFilter);
-			if (dirs == null || request.getTotalParts() != dirs.length) {
-				return null;
+		try (UploadLockRegistry.Handle ignored = finalizeLocks.lock(requestUuid)) {
+			// reserve before merging, a rejected upload keeps its parts and can be finalized again later
+			boolean reserved = false;
+			if (mediaJobQueue != null) {
+				mediaJobQueue.reserve();
+				reserved = true;
 			}
-			File[] parts = FileUtils.getPartitionFiles(dir, requestUuid);
-			File outputFile = new File(dir, outputFileName);
-			// Make sure we don't have any existing file before writing the output
-			FileUtils.silenceDelete(outputFile);
-			for (File part : parts) {
-				FileUtils.mergeFiles(outputFile, part);
+			try {
+				// hashing keeps the merge out of the kernel, the digest is only taken when something reads it
+				MessageDigest digest = StringHelper.hasText(request.getFileChecksum()) || contentIndex != null ?
+				                       ChecksumHelper.newFileDigest() : null;
+				File outputFile = config.isPreallocateChunks() ?
+				                  completePartialFile(request, dir, outputFileName, digest) :
+				                  mergePartFiles(request, dir, outputFileName, digest);
+				if (outputFile == null) {
+					return null;
+				}
+
+				FileUtils.assertCombinedFileIsValid(uploadDir, request.getTotalFileSize(), outputFile, requestUuid);
+				String checksum = digest != null ? ChecksumHelper.toHex(digest.digest()) : null;
+				if (!ChecksumHelper.matchesFileChecksum(request.getFileChecksum(), checksum)) {
+					// the content is corrupt, the client has to upload it again from the first part
+					FileUtils.deleteDirectory(dir);
+					throw new MergePartsException(String.format(
+							"Combined file checksum mismatch. Actual SHA-256 %s. Expected SHA-256 %s.", checksum,
+							request.getFileChecksum()));
+				}
+
+				boolean original = Optional.ofNullable(request.getOriginal()).orElse(false);
+				ContentIndexEntry indexed = contentIndex != null ?
+				                            contentIndex.find(checksum, outputFile.length()) : null;
+				if (indexed != null && indexed.isOriginal() == original) {
+					log.info("File UUID {} matches stored content {}, skipping media processing", requestUuid,
+					         indexed.getBlobPath());
+					MediaInfo media = contentIndex.reuse(indexed, uploadDir, requestUuid,
+					                                     FileUtils.getName(request.getFilename()));
+					FileUtils.deleteDirectory(dir);
+					return completedJob(handleMediaInfo(media));
+				}
+
+				// a content type sniffed from the first chunk spares the detection on the merged file
+				UploadStatus status = ChunkManifest.getStatus(dir, requestUuid, request.getTotalParts());
+				MultipartFile multipartFile = new FileMultipartFile(request.getFilename(), request.getFilename(),
+				                                                    status != null ? status.getContentType() : null,
+				                                                    outputFile);
+				MediaJob job = createMediaJob(multipartFile, requestUuid, original);
+				if (job != null) {
+					job.setChecksum(checksum);
+				}
+
+				if (mediaJobQueue != null && job != null) {
+					MediaJob queued;
+					try {
+						queued = mediaJobQueue.submit(job);
+					} catch (IOException | RuntimeException e) {
+						// not journaled, the client finalizes the same upload again
+						restoreUpload(request, dir, job);
+						throw e;
+					}
+					// the slot now belongs to the queued job, a failed submit still gives it back below
+					reserved = false;
+					// part files and the chunk manifest go with the upload folder once the job is safely queued
+					FileUtils.deleteDirectory(dir);
+					return queued;
+				}
+				String mediaId;
+				try {
+					mediaId = processMediaJob(job);
+				} catch (IOException e) {
+					// a conversion was rejected, the client finalizes the same upload again once the load drops
+					restoreUpload(request, dir, job);
+					throw e;
+				}
+				FileUtils.deleteDirectory(dir);
+				return completedJob(mediaId);
+			} finally {
+				if (reserved) {
+					mediaJobQueue.release();
+				}
 			}
+		}
+	}
 
-			FileUtils.assertCombinedFileIsValid(uploadDir, request.getTotalFileSize(), outputFile, requestUuid);
-			FileUtils.deletePartitionFiles(dir, requestUuid);
+	private File mergePartFiles(RequestParser request, File dir, String outputFileName, MessageDigest digest)
+			throws IOException {
+		// parts ordered by index, null while one is missing
+		File[] parts = partRegistry.getCompleteParts(dir, request.getUuid(), request.getTotalParts());
+		if (parts == null) {
+			return null;
+		}
+		File outputFile = new File(dir, outputFileName);
+		FileUtils.mergeParts(parts, outputFile, digest);
+		partRegistry.remove(request.getUuid());
+		return outputFile;
+	}
 
-			FileInputStream fileInputStream = new FileInputStream(outputFile);
-			MultipartFile multipartFile = new DiskMultipartFile(request.getFilename(), request.getFilename(),
-			                                                    null, fileInputStream);
-			boolean original = Optional.ofNullable(request.getOriginal()).orElse(false);
-			MediaInfo mediaInfo = buildMediaInfo(multipartFile, requestUuid, original);
-			FileUtils.deleteDirectory(dir);
+	private File completePartialFile(RequestParser request, File dir, String outputFileName, MessageDigest digest)
+			throws IOException {
+		if (!PartialFileAssembler.isComplete(dir, request.getUuid(), request.getTotalParts())) {
+			return null;
+		}
+		File outputFile = PartialFileAssembler.complete(dir, request.getUuid(), outputFileName);
+		if (digest != null) {
+			// parts land at their offsets in any order, the digest can only be taken once the file is complete
+			FileUtils.digest(outputFile, digest);
+		}
+		return outputFile;
+	}
 
-			Function<MediaInfo, String> mediaProcessHandler = config.getMediaProcessHandler();
-			return mediaProcessHandler != null ? mediaProcessHandler.apply(mediaInfo) : null;
+	/**
+	 * Give the upload folder back what finalizing took from it, so it can be finalized again.
+	 */
+	private void restoreUpload(RequestParser request, File dir, MediaJob job) throws IOException {
+		File uploadedFile = new File(job.getFilePath());
+		if (config.isPreallocateChunks()) {
+			// the bitmap still marks every part, the partial file is complete again
+			FileUtils.move(uploadedFile, PartialFileAssembler.getPartialFile(dir, request.getUuid()));
+		} else {
+			// merged again from the part files
+			FileUtils.delete(uploadedFile);
 		}
 	}
 
-	private MediaInfo buildMediaInfo(MultipartFile file, String guid, boolean original) {
+	private MediaJob createMediaJob(MultipartFile file, String guid, boolean original) throws IOException {
 		if (file.getSize() == 0) {
 			log.error("Upload file is null or empty");
 			return null;
 		}
 
-		String contentType = file.getContentType();
-		String fileType = FileSupportEnum.getFileType(contentType);
-		String originalFilename = FileUtils.getName(file.getOriginalFilename());
 		String originalExt = FileUtils.getExtension(file);
-		MediaInfo media = new MediaInfo();
-		try {
-			File uploadedFile = FileUtils.saveFileOnServer(uploadDir, file.getInputStream(), originalExt, null);
+		File uploadedFile = FileUtils.moveFileOnServer(uploadDir, file, originalExt, null);
+		syncFinalFile(uploadedFile);
 
-			if (StringHelper.isEmpty(contentType) || contentType.equals("application/octet-stream")) {
-				contentType = FileUtils.guessContentType(uploadedFile);
-				fileType = FileSupportEnum.getFileType(contentType);
+		MediaJob job = new MediaJob();
+		job.setGuid(guid);
+		job.setFilePath(uploadedFile.getAbsolutePath());
+		job.setOriginalFilename(FileUtils.getName(file.getOriginalFilename()));
+		job.setContentType(file.getContentType());
+		job.setExt(originalExt);
+		job.setOriginal(original);
+		job.setPriority(MediaJobQueue.getPriority(originalExt));
+		return job;
+	}
+
+	private void syncFinalFile(File file) throws IOException {
+		DurabilityPolicy durabilityPolicy = config.getDurabilityPolicy();
+		if (durabilityPolicy == DurabilityPolicy.GROUP_COMMIT) {
+			groupCommitSyncer.sync(file);
+		} else if (durabilityPolicy != DurabilityPolicy.NONE) {
+			// when not set the finalized upload is synced as it always was
+			FileUtils.sync(file);
+			// the rename into the upload folder is only durable once the folder is synced
+			FileUtils.syncDirectory(file.getAbsoluteFile().getParentFile());
+		}
+	}
+
+	private String processMediaJob(MediaJob job) throws IOException {
+		MediaInfo mediaInfo = job != null ? buildMediaInfo(job) : null;
+		if (mediaInfo != null && contentIndex != null && job.getChecksum() != null && mediaInfo.getSize() != null) {
+			// a converted upload is stored under its new name, media still processing is updated once it is done
+			File blob = new File(uploadDir, mediaInfo.getFilename());
+			if (blob.exists()) {
+				contentIndex.put(job.getChecksum(), mediaInfo.getSize(), blob, job.isOriginal(), mediaInfo);
 			}
+		}
+		return handleMediaInfo(mediaInfo);
+	}
 
-			media.setGuid(guid);
-			media.setContentType(contentType);
-			media.setOriginalFilename(originalFilename);
-			media.setUrl(uploadedFile.getName());
-			media.setFilename(uploadedFile.getName());
+	private String handleMediaInfo(MediaInfo mediaInfo) {
+		Function<MediaInfo, String> mediaProcessHandler = config.getMediaProcessHandler();
+		return mediaProcessHandler != null ? mediaProcessHandler.apply(mediaInfo) : null;
+	}
 
-			MediaHelperService.saveMediaInfo(uploadDir, media, uploadedFile, fileType, originalExt, original, config);
+	private MediaInfo buildMediaInfo(MediaJob job) throws IOException {
+		File uploadedFile = new File(job.getFilePath());
+		String contentType = job.getContentType();
+		String fileType = FileSupportEnum.getFileType(contentType);
+		if (StringHelper.isEmpty(contentType) || contentType.equals("application/octet-stream")) {
+			contentType = FileUtils.guessContentType(uploadedFile);
+			fileType = FileSupportEnum.getFileType(contentType);
+		}
 
-		} catch (IOException e) {
-			log.error(e.getMessage());
+		MediaInfo media = new MediaInfo();
+		media.setGuid(job.getGuid());
+		media.setChecksum(job.getChecksum());
+		media.setContentType(contentType);
+		media.setOriginalFilename(job.getOriginalFilename());
+		media.setUrl(uploadedFile.getName());
+		media.setFilename(uploadedFile.getName());
+		if (uploadedFile.exists()) {
+			// taken before a conversion replaces the file, it keys the content index
+			media.setSize(uploadedFile.length());
 		}
+
+		MediaHelperService.saveMediaInfo(uploadDir, media, uploadedFile, fileType, job.getExt(), job.isOriginal(),
+		                                 config);
 		return media;
 	}
 
+	private static MediaJob completedJob(String mediaId) {
+		MediaJob job = new MediaJob();
+		job.setMediaId(mediaId);
+		job.setStatus(MediaJobStatus.DONE);
+		return job;
+	}
+
 	private void writeResponse(PrintWriter writer, String failureReason) {
 		if (failureReason == null) {
 			writer.print("{\"responseData\": {\"success\": true}}");
@@ -167,4 +390,8 @@ public class ChunkDoneServlet extends HttpServlet {
 	private void writeChunkDoneResponse(PrintWriter writer, String mediaId) {
 		writer.print("{\"responseData\": {\"success\": true, \"mediaId\": \"" + mediaId + "\"}}");
 	}
+
+	private void writeMediaJobResponse(PrintWriter writer, String jobId) {
+		writer.print("{\"responseData\": {\"success\": true, \"jobId\": \"" + jobId + "\"}}");
+	}
 }
@@ -0,0 +1,173 @@
+package io.fruitful.spring.uploader.controller;
+
+import io.fruitful.spring.uploader.service.PartialFileAssembler;
+import io.fruitful.spring.uploader.util.BufferPool;
+import io.fruitful.spring.uploader.util.FileUtils;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Non-blocking chunk ingestion: bytes are written to the chunk's file channel as the container reports them
+ * readable, so a container thread is only busy while data is actually arriving. Registered on the async context
+ * as well, so a client that stops sending fails the chunk when the context times out.
+ */
+@Slf4j
+class ChunkReadListener implements ReadListener, AsyncListener {
+
+	private final AsyncContext asyncContext;
+	private final ServletInputStream input;
+	private final FileChannel channel;
+	private final long offset;
+	// the chunk fails as soon as it is longer, before anything past it is written
+	private final long maxLength;
+	// force the chunk to the device before completing it
+	private final boolean sync;
+	private final Completion completion;
+	private final BiConsumer<PrintWriter, String> responseWriter;
+	private final CRC32C checksum = new CRC32C();
+	// set by whichever of completion, read error, timeout or async error comes first
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private long position;
+
+	ChunkReadListener(AsyncContext asyncContext, ServletInputStream input, FileChannel channel, long offset,
+	                  long maxLength, boolean sync, Completion completion,
+	                  BiConsumer<PrintWriter, String> responseWriter) {
+		this.asyncContext = asyncContext;
+		this.input = input;
+		this.channel = channel;
+		this.offset = offset;
+		this.position = offset;
+		this.maxLength = maxLength;
+		this.sync = sync;
+		this.completion = completion;
+		this.responseWriter = responseWriter;
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		// a buffer is only held while data is being read, not while waiting for the client
+		try (BufferPool.Lease lease = FileUtils.STREAM_BUFFERS.acquire()) {
+			while (input.isReady()) {
+				int count = input.read(lease.array());
+				if (count == -1) {
+					return;
+				}
+				PartialFileAssembler.assertWithinPart(position - offset + count, maxLength);
+				checksum.update(lease.array(), 0, count);
+				ByteBuffer byteBuffer = lease.buffer().clear().limit(count);
+				while (byteBuffer.hasRemaining()) {
+					position += channel.write(byteBuffer, position);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onAllDataRead() {
+		if (!finished.compareAndSet(false, true)) {
+			return;
+		}
+		String failureReason;
+		try {
+			if (sync) {
+				channel.force(false);
+			}
+			channel.close();
+			failureReason = completion.onComplete(position - offset, checksum.getValue());
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			closeChannel();
+			completion.onFailure();
+			failureReason = e.getMessage();
+		}
+		respond(failureReason);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		log.error("Chunk upload failed after {} bytes", position - offset, throwable);
+		fail(throwable.getMessage());
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		log.error("Chunk upload timed out after {} bytes", position - offset);
+		fail("Chunk upload timed out");
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		log.error("Chunk upload failed after {} bytes", position - offset, event.getThrowable());
+		fail(event.getThrowable() != null ? event.getThrowable().getMessage() : "Chunk upload failed");
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		// nothing to release, the chunk was completed or failed before
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+		// not restarted
+	}
+
+	private void fail(String failureReason) {
+		if (!finished.compareAndSet(false, true)) {
+			return;
+		}
+		closeChannel();
+		completion.onFailure();
+		respond(failureReason);
+	}
+
+	private void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void respond(String failureReason) {
+		try {
+			responseWriter.accept(asyncContext.getResponse().getWriter(), failureReason);
+		} catch (Exception e) {
+			log.error("Error writing response", e);
+		} finally {
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException e) {
+				// the container already completed the request
+				log.debug("Async context already completed", e);
+			}
+		}
+	}
+
+	interface Completion {
+
+		/**
+		 * Called once the whole chunk is on disk.
+		 *
+		 * @param checksum CRC32C of the chunk content
+		 * @return the failure reason to report to the client, null on success
+		 */
+		String onComplete(long bytesWritten, long checksum) throws IOException;
+
+		/**
+		 * Called when the chunk could not be stored, to drop whatever was written.
+		 */
+		void onFailure();
+	}
+}
@@ -3,8 +3,21 @@ package io.fruitful.spring.uploader.controller;
 import io.fruitful.spring.uploader.dto.MultipartUploadParser;
 import io.fruitful.spring.uploader.dto.RequestParser;
 import io.fruitful.spring.uploader.dto.UploadConfig;
+import io.fruitful.spring.uploader.dto.UploadStatus;
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
+import io.fruitful.spring.uploader.enumeration.ExecutionMode;
+import io.fruitful.spring.uploader.enumeration.FileSupportEnum;
+import io.fruitful.spring.uploader.exception.UnsupportedContentTypeException;
+import io.fruitful.spring.uploader.service.ChunkManifest;
+import io.fruitful.spring.uploader.service.PartialFileAssembler;
+import io.fruitful.spring.uploader.service.UploadExecutors;
+import io.fruitful.spring.uploader.service.UploadPartRegistry;
+import io.fruitful.spring.uploader.util.ChecksumHelper;
 import io.fruitful.spring.uploader.util.FileUtils;
+import io.fruitful.spring.uploader.util.StringHelper;
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -12,9 +25,18 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.fileupload2.jakarta.JakartaServletFileUpload;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.Serial;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 @Slf4j
 public class UploadServlet extends HttpServlet {
@@ -22,6 +44,7 @@ public class UploadServlet extends HttpServlet {
 	@Serial
 	private static final long serialVersionUID = -1551073211800080798L;
 	private static final int SUCCESS_RESPONSE_CODE = 200;
+	private static final long DEFAULT_ASYNC_CHUNK_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
 
 	private final File uploadDir;
 	private final File tempDir;
@@ -33,6 +56,7 @@ public class UploadServlet extends HttpServlet {
 		tempDir = new File(Optional.ofNullable(config.getTemporaryFolder()).orElse(""));
 		FileUtils.mkDir(uploadDir);
 		FileUtils.mkDir(tempDir);
+		FileSupportEnum.register(config.getAdditionalFileTypes());
 	}
 
 	@Override
@@ -40,15 +64,65 @@ public class UploadServlet extends HttpServlet {
 		resp.setStatus(SUCCESS_RESPONSE_CODE);
 	}
 
+	/**
+	 * Upload status used to resume an interrupted chunked upload: {@code qquuid} identifies the upload and the
+	 * optional {@code qqtotalparts} overrides the part count recorded in the manifest. The missing part indexes are
+	 * returned in the {@code X-Missing-Parts} header and, except for HEAD requests, in the JSON body.
+	 */
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) {
+		resp.setContentType("application/json");
+		try {
+			RequestParser requestParser = RequestParser.getInstance(req, null);
+			if (StringHelper.isEmpty(requestParser.getUuid())) {
+				resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				writeResponse(resp.getWriter(), "Missing upload UUID");
+				return;
+			}
+			File dir = new File(uploadDir, requestParser.getUuid());
+			UploadStatus status = ChunkManifest.getStatus(dir, requestParser.getUuid(), requestParser.getTotalParts());
+			if (status == null) {
+				resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				writeResponse(resp.getWriter(), "Unknown upload " + requestParser.getUuid());
+				return;
+			}
+			String missingParts = status.getMissingParts().stream().map(String::valueOf)
+			                            .collect(Collectors.joining(","));
+			resp.setStatus(SUCCESS_RESPONSE_CODE);
+			resp.setHeader("X-Total-Parts", String.valueOf(status.getTotalParts()));
+			resp.setHeader("X-Received-Parts", String.valueOf(status.getParts().size()));
+			resp.setHeader("X-Missing-Parts", missingParts);
+			resp.getWriter().print("{\"responseData\": {\"success\": true, \"uuid\": \"" + status.getUuid() +
+			                       "\", \"totalParts\": " + status.getTotalParts() + ", \"receivedParts\": " +
+			                       status.getParts().size() + ", \"missingParts\": [" + missingParts + "]}}");
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			try {
+				resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				writeResponse(resp.getWriter(), e.getMessage());
+			} catch (Exception responseError) {
+				log.error("Error writing response", responseError);
+			}
+		}
+	}
+
 	@Override
 	public void doPost(HttpServletRequest req, HttpServletResponse resp) {
+		// a ReadListener needs the container's async context for itself, it takes precedence over virtual threads
+		ExecutionMode executionMode = config.isAsyncChunkIngestion() ? ExecutionMode.SERVLET_THREAD :
+		                              config.getExecutionMode();
+		UploadExecutors.dispatch(req, resp, executionMode, this::handlePost);
+	}
+
+	private void handlePost(HttpServletRequest req, HttpServletResponse resp) {
 		resp.setContentType("application/json");
 		resp.setStatus(SUCCESS_RESPONSE_CODE);
 		try {
 			if (JakartaServletFileUpload.isMultipartContent(req)) {
 				ServletContext servletContext = getServletContext();
 				MultipartUploadParser multipartUploadParser = new MultipartUploadParser(req, tempDir, servletContext,
-				                                                                        true);
+				                                                                        true,
+				                                                                        config.getMultipartThreshold());
 				RequestParser requestParser = RequestParser.getInstance(req, multipartUploadParser);
 				writeFileForMultipartRequest(requestParser, resp);
 
@@ -57,11 +131,20 @@ public class UploadServlet extends HttpServlet {
 				// handle POST delete file request
 				if (requestParser.getMethod() != null && requestParser.getMethod().equalsIgnoreCase("DELETE")) {
 					String uuid = requestParser.getUuid();
+					UploadPartRegistry.getDefault().remove(uuid);
 					FileUtils.deleteDirectory(new File(uploadDir, uuid));
 				} else {
 					writeFileForNonMultipartRequest(requestParser, req, resp);
 				}
 			}
+		} catch (UnsupportedContentTypeException e) {
+			log.warn(e.getMessage());
+			try {
+				// retrying cannot change the content, the client must not send the upload again
+				resp.getWriter().print("{\"error\": \"" + e.getMessage() + "\", \"preventRetry\": true}");
+			} catch (Exception responseError) {
+				log.error("Error writing response", responseError);
+			}
 		} catch (Exception e) {
 			log.error(e.getMessage(), e);
 			try {
@@ -92,14 +175,144 @@ public class UploadServlet extends HttpServlet {
 			if (requestParser.getPartIndex() >= requestParser.getTotalParts()) {
 				return;
 			}
-			String outputFile = requestParser.getUuid() + "_" + String.format("%05d", requestParser.getPartIndex());
-			FileUtils.writeFile(req.getInputStream(), new File(dir, outputFile), null);
+			if (config.isAsyncChunkIngestion() && req.isAsyncSupported()) {
+				readChunkAsync(requestParser, dir, req, expectedFileSize);
+				return;
+			}
+			long written = config.isPreallocateChunks() ?
+			               PartialFileAssembler.writePart(dir, requestParser, req.getInputStream(), expectedFileSize,
+			                                              config.getDurabilityPolicy()) :
+			               writePartFile(requestParser, dir, req.getInputStream(), null);
+			detectContentType(requestParser, dir, written);
 		} else {
-			FileUtils.writeFile(req.getInputStream(), new File(dir, requestParser.getFilename()), expectedFileSize);
+			FileUtils.writeFile(req.getInputStream(), new File(dir, requestParser.getFilename()), expectedFileSize,
+			                    config.getDurabilityPolicy());
 		}
 		writeResponse(resp.getWriter(), requestParser.generateError() ? "Generated error" : null);
 	}
 
+	private void readChunkAsync(RequestParser requestParser, File dir, HttpServletRequest req, long expectedFileSize)
+			throws IOException {
+		FileChannel channel;
+		long offset;
+		long maxLength;
+		ChunkReadListener.Completion completion;
+		if (config.isPreallocateChunks()) {
+			offset = PartialFileAssembler.prepare(dir, requestParser);
+			maxLength = PartialFileAssembler.getMaxPartLength(requestParser, offset, expectedFileSize);
+			channel = FileChannel.open(PartialFileAssembler.getPartialFile(dir, requestParser.getUuid()).toPath(),
+			                           StandardOpenOption.WRITE);
+			completion = new ChunkReadListener.Completion() {
+				@Override
+				public String onComplete(long bytesWritten, long checksum) throws IOException {
+					PartialFileAssembler.completePart(dir, requestParser, expectedFileSize, offset, bytesWritten,
+					                                  checksum);
+					return detectContentTypeAsync(requestParser, dir, bytesWritten);
+				}
+
+				@Override
+				public void onFailure() {
+					// the part stays unmarked in the bitmap and will be written again
+				}
+			};
+		} else {
+			File partFile = new File(dir, getPartFileName(requestParser));
+			offset = 0;
+			maxLength = requestParser.getChunkSize() != null ? requestParser.getChunkSize() : expectedFileSize;
+			channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			                           StandardOpenOption.TRUNCATE_EXISTING);
+			completion = new ChunkReadListener.Completion() {
+				@Override
+				public String onComplete(long bytesWritten, long checksum) throws IOException {
+					ChecksumHelper.assertChunkChecksum(requestParser.getChunkChecksum(), checksum);
+					ChunkManifest.recordPart(dir, requestParser, bytesWritten, checksum);
+					UploadPartRegistry.getDefault().recordPart(requestParser.getUuid(), requestParser.getTotalParts(),
+					                                           requestParser.getPartIndex(), partFile);
+					return detectContentTypeAsync(requestParser, dir, bytesWritten);
+				}
+
+				@Override
+				public void onFailure() {
+					FileUtils.silenceDelete(partFile);
+				}
+			};
+		}
+
+		try {
+			AsyncContext asyncContext = req.startAsync();
+			asyncContext.setTimeout(config.getAsyncChunkTimeout() > 0 ? config.getAsyncChunkTimeout() :
+			                        DEFAULT_ASYNC_CHUNK_TIMEOUT);
+			ServletInputStream input = req.getInputStream();
+			boolean sync = config.getDurabilityPolicy() == DurabilityPolicy.ALWAYS;
+			ChunkReadListener listener = new ChunkReadListener(asyncContext, input, channel, offset, maxLength, sync,
+			                                                   completion, this::writeResponse);
+			asyncContext.addListener(listener);
+			input.setReadListener(listener);
+		} catch (RuntimeException | IOException e) {
+			channel.close();
+			completion.onFailure();
+			throw e;
+		}
+	}
+
+	private static String getPartFileName(RequestParser requestParser) {
+		return requestParser.getUuid() + "_" + String.format("%05d", requestParser.getPartIndex());
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	private long writePartFile(RequestParser requestParser, File dir, InputStream in, Long expectedFileSize)
+			throws IOException {
+		File partFile = new File(dir, getPartFileName(requestParser));
+		CheckedInputStream checkedIn = new CheckedInputStream(in, new CRC32C());
+		FileUtils.writeFile(checkedIn, partFile, expectedFileSize, config.getDurabilityPolicy());
+		long checksum = checkedIn.getChecksum().getValue();
+		try {
+			ChecksumHelper.assertChunkChecksum(requestParser.getChunkChecksum(), checksum);
+		} catch (IOException e) {
+			FileUtils.silenceDelete(partFile);
+			throw e;
+		}
+		ChunkManifest.recordPart(dir, requestParser, partFile.length(), checksum);
+		UploadPartRegistry.getDefault().recordPart(requestParser.getUuid(), requestParser.getTotalParts(),
+		                                           requestParser.getPartIndex(), partFile);
+		return partFile.length();
+	}
+
+	/**
+	 * Sniff the content type of the first chunk once it is stored and record it in the chunk manifest. An upload of
+	 * a type that is not accepted is dropped before the rest of it is sent.
+	 */
+	private void detectContentType(RequestParser requestParser, File dir, long written)
+			throws IOException, UnsupportedContentTypeException {
+		Set<FileSupportEnum> acceptedFileTypes = config.getAcceptedFileTypes();
+		boolean filtered = acceptedFileTypes != null && !acceptedFileTypes.isEmpty();
+		if (requestParser.getPartIndex() != 0 || !(config.isDetectContentType() || filtered)) {
+			return;
+		}
+		File chunkFile = config.isPreallocateChunks() ?
+		                 PartialFileAssembler.getPartialFile(dir, requestParser.getUuid()) :
+		                 new File(dir, getPartFileName(requestParser));
+		String contentType = FileUtils.guessContentType(requestParser.getFilename(),
+		                                                FileUtils.readHead(chunkFile, written));
+		if (filtered && acceptedFileTypes.stream().noneMatch(fileType -> fileType.supports(contentType))) {
+			UploadPartRegistry.getDefault().remove(requestParser.getUuid());
+			FileUtils.deleteDirectory(dir);
+			throw new UnsupportedContentTypeException("Unsupported file type " + contentType);
+		}
+		ChunkManifest.recordContentType(dir, requestParser, contentType);
+	}
+
+	private String detectContentTypeAsync(RequestParser requestParser, File dir, long written) throws IOException {
+		try {
+			detectContentType(requestParser, dir, written);
+		} catch (UnsupportedContentTypeException e) {
+			return e.getMessage();
+		}
+		return requestParser.generateError() ? "Generated error" : null;
+	}
+
 	private void writeFileForMultipartRequest(RequestParser requestParser,
 	                                          HttpServletResponse resp) throws Exception {
 		log.info("File UUID {} PART SIZE {} bytes; TOTAL {} bytes; index: {}, totalPart: {}",
@@ -116,14 +329,17 @@ public class UploadServlet extends HttpServlet {
 			if (requestParser.getPartIndex() >= requestParser.getTotalParts()) {
 				return;
 			}
-			String outputFile = requestParser.getUuid() + "_" + String.format("%05d", requestParser.getPartIndex());
-			FileUtils.writeFile(requestParser.getUploadItem().getInputStream(),
-			                    new File(dir, outputFile),
-			                    requestParser.getFileSize());
+			long written = config.isPreallocateChunks() ?
+			               PartialFileAssembler.writePart(dir, requestParser,
+			                                              requestParser.getUploadItem().getInputStream(),
+			                                              requestParser.getFileSize(), config.getDurabilityPolicy()) :
+			               writePartFile(requestParser, dir, requestParser.getUploadItem().getInputStream(),
+			                             requestParser.getFileSize());
+			detectContentType(requestParser, dir, written);
 		} else {
 			FileUtils.writeFile(requestParser.getUploadItem().getInputStream(),
 			                    new File(dir, requestParser.getFilename()),
-			                    requestParser.getFileSize());
+			                    requestParser.getFileSize(), config.getDurabilityPolicy());
 		}
 		writeResponse(resp.getWriter(), requestParser.generateError() ? "Generated error" : null);
 	}
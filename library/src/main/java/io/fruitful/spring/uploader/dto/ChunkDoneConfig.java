@@ -1,9 +1,18 @@
 package io.fruitful.spring.uploader.dto;
 
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
+import io.fruitful.spring.uploader.enumeration.ExecutionMode;
+import io.fruitful.spring.uploader.enumeration.FileSupportEnum;
+import io.fruitful.spring.uploader.enumeration.StreamingFormat;
+import io.fruitful.spring.uploader.service.TranscodeScheduler;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
@@ -18,6 +27,42 @@ public class ChunkDoneConfig {
 	private String ffmpegPath;
 	private String ffmpegThumbExt;
 	private String ffmpegThumbStartTime;
+	// write chunks in place into one preallocated <uuid>.partial file instead of one file per chunk
+	private boolean preallocateChunks;
+	// multipart items up to this many bytes stay in memory instead of the temporary folder, 10 KB when not set
+	private int multipartThreshold;
+	// when finalized uploads and derived files are synced to disk. When not set both are synced, as under
+	// FINAL_ONLY for the finalized upload
+	private DurabilityPolicy durabilityPolicy;
+	// milliseconds between two batches of syncs under GROUP_COMMIT, 10 when not set
+	private long groupCommitInterval;
+	// SERVLET_THREAD when not set
+	private ExecutionMode executionMode;
+	// limits the ffmpeg processes, TranscodeScheduler.getDefault() when not set
+	private TranscodeScheduler transcodeScheduler;
+	// renditions encoded when a video is finalized, all from one decode of the video. None when empty, requires
+	// mediaJobWorkers
+	private List<TranscodeProfile> transcodeProfiles;
+	// segmented streaming output written when a video is finalized, one variant per transcode profile and encoded
+	// with their renditions. None when not set, requires mediaJobWorkers
+	private StreamingFormat streamingFormat;
+	// seconds per streaming segment, 6 when not set
+	private int segmentDuration;
+	// minutes the renditions and streaming encode of one video may run, MediaProcessor.CONVERSION_TIMEOUT when not
+	// set
+	private long transcodeTimeout;
+	// frames of the video scrub preview sprite sheet, the best one becomes the thumbnail. No preview when 0
+	private int previewFrames;
+	// MIME types and extensions added to the built-in ones of each file type, see FileSupportEnum#register
+	private Map<FileSupportEnum, Set<String>> additionalFileTypes;
 	private Function<MediaInfo, String> mediaProcessHandler;
 	private UnaryOperator<String> mediaExistedHandler;
+	// reuse the stored file and media info of uploads with the same SHA-256 and size, indexed in this folder. No
+	// deduplication when not set
+	private String contentIndexFolder;
+	// process media on this many background workers and respond with a job id, 0 processes before responding
+	private int mediaJobWorkers;
+	// number of waiting media jobs before chunk-done is rejected, 1000 when not set
+	private int mediaJobQueueCapacity;
+	private Consumer<MediaJob> mediaJobStatusHandler;
 }
@@ -0,0 +1,18 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class ChunkPart {
+
+	private int index;
+	private long size;
+	// CRC32C of the part content
+	private long checksum;
+	// epoch millis the part was stored
+	private long timestamp;
+}
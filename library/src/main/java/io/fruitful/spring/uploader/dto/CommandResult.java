@@ -0,0 +1,24 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class CommandResult {
+
+	// null when the process was killed on timeout
+	private Integer exitCode;
+	private boolean timedOut;
+	private String stdout;
+	private String stderr;
+	// output beyond the buffer size was read and dropped
+	private boolean truncated;
+	private long durationMillis;
+
+	public boolean isSuccess() {
+		return !timedOut && exitCode != null && exitCode == 0;
+	}
+}
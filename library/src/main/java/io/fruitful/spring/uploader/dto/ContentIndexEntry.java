@@ -0,0 +1,24 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class ContentIndexEntry {
+
+	// SHA-256 of the content as uploaded, as hex
+	private String checksum;
+	// length of the content as uploaded
+	private long size;
+	// the stored upload in the upload folder, converted when the upload was converted
+	private String blobPath;
+	private long blobSize;
+	// the original flag of the upload the media info was built for
+	private boolean original;
+	// media info built when the content was first processed, thumbnails and renditions included
+	private MediaInfo media;
+	private long indexedTime;
+}
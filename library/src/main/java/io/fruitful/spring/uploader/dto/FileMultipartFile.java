@@ -0,0 +1,65 @@
+package io.fruitful.spring.uploader.dto;
+
+import io.fruitful.spring.uploader.util.FileUtils;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+@Getter
+public class FileMultipartFile implements MultipartFile {
+	private final String name;
+	private final String originalFilename;
+	private final String contentType;
+	private File file;
+
+	/**
+	 * Create a new FileMultipartFile backed by a file on disk. The content is never loaded on the heap.
+	 *
+	 * @param name             the name of the file
+	 * @param originalFilename the original filename (as on the client's machine)
+	 * @param contentType      the content type (if known)
+	 * @param file             the file holding the content
+	 */
+	public FileMultipartFile(String name, String originalFilename, String contentType, File file) {
+		this.name = name;
+		this.originalFilename = (originalFilename != null ? originalFilename : "");
+		this.contentType = contentType;
+		this.file = file;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return getSize() == 0;
+	}
+
+	@Override
+	public long getSize() {
+		return this.file.length();
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		return Files.readAllBytes(this.file.toPath());
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return Files.newInputStream(this.file.toPath());
+	}
+
+	/**
+	 * Move the backing file to the destination, atomically when the file system supports it. The instance follows
+	 * the file to its new location.
+	 */
+	@Override
+	public void transferTo(File dest) throws IOException, IllegalStateException {
+		if (!this.file.exists()) {
+			throw new IllegalStateException("File " + this.file.getAbsolutePath() + " has already been moved");
+		}
+		FileUtils.move(this.file, dest);
+		this.file = dest;
+	}
+}
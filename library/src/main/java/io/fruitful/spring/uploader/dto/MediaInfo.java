@@ -5,6 +5,7 @@ import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 import java.util.Date;
+import java.util.List;
 
 @Getter
 @Setter
@@ -17,9 +18,17 @@ public class MediaInfo {
 	private String url;
 	private Boolean processing;
 	private String guid;
+	// SHA-256 of the uploaded content as hex
+	private String checksum;
+	// length of the uploaded content, before any conversion
+	private Long size;
 	private Integer width;
 	private Integer height;
 	private MediaThumbnailInfo thumbnail;
+	private List<MediaRendition> renditions;
+	// segmented streaming output, the encode may still be appending segments
+	private MediaManifest manifest;
+	private VideoPreview preview;
 	
 	private Boolean external;
 	private Long duration;
@@ -0,0 +1,29 @@
+package io.fruitful.spring.uploader.dto;
+
+import io.fruitful.spring.uploader.enumeration.MediaJobStatus;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class MediaJob {
+
+	private String jobId;
+	private String guid;
+	// the uploaded file, already moved into the upload folder
+	private String filePath;
+	private String originalFilename;
+	private String contentType;
+	private String ext;
+	// SHA-256 of the content as hex
+	private String checksum;
+	private boolean original;
+	// lower runs first
+	private int priority;
+	private long sequence;
+	private MediaJobStatus status;
+	private String mediaId;
+	private String error;
+}
@@ -0,0 +1,19 @@
+package io.fruitful.spring.uploader.dto;
+
+import io.fruitful.spring.uploader.enumeration.StreamingFormat;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class MediaManifest {
+
+	private StreamingFormat format;
+	// path of the master playlist or manifest, relative to the upload folder
+	private String filename;
+	private String contentType;
+	// seconds per segment
+	private int segmentDuration;
+}
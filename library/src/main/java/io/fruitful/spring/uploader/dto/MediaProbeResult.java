@@ -0,0 +1,40 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class MediaProbeResult {
+
+	private String formatName;
+	private Double durationSeconds;
+	// bits per second of the whole file
+	private Long bitRate;
+	private String videoCodec;
+	private String audioCodec;
+	// coded size of the first video stream, before rotation
+	private Integer width;
+	private Integer height;
+	// clockwise degrees the video must be rotated for display, 0, 90, 180 or 270
+	private int rotation;
+	private Double frameRate;
+
+	public boolean hasVideo() {
+		return videoCodec != null;
+	}
+
+	public Integer getDisplayWidth() {
+		return isQuarterTurn() ? height : width;
+	}
+
+	public Integer getDisplayHeight() {
+		return isQuarterTurn() ? width : height;
+	}
+
+	private boolean isQuarterTurn() {
+		return rotation == 90 || rotation == 270;
+	}
+}
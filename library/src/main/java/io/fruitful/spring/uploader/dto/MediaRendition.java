@@ -0,0 +1,18 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class MediaRendition {
+
+	// name of the transcode profile
+	private String name;
+	private String filename;
+	private String contentType;
+	private Integer width;
+	private Integer height;
+}
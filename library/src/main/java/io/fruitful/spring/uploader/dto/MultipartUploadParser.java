@@ -39,11 +39,20 @@ public class MultipartUploadParser {
 
 	public MultipartUploadParser(HttpServletRequest request, File repository, ServletContext context, boolean isUpload)
 			throws IOException {
+		this(request, repository, context, isUpload, DiskFileItemFactory.DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold items up to this many bytes are kept in memory, larger ones are spooled to the repository.
+	 *                  DEFAULT_THRESHOLD when not positive
+	 */
+	public MultipartUploadParser(HttpServletRequest request, File repository, ServletContext context, boolean isUpload,
+	                             int threshold) throws IOException {
 		if (!repository.exists() && !repository.mkdirs()) {
 			throw new IOException("Unable to mkdirs to " + repository.getAbsolutePath());
 		}
 
-		fileItemsFactory = setupFileItemFactory(repository, context);
+		fileItemsFactory = setupFileItemFactory(repository, context, threshold);
 
 		JakartaServletFileUpload<DiskFileItem, DiskFileItemFactory> upload =
 				new JakartaServletFileUpload<>(fileItemsFactory);
@@ -64,9 +73,10 @@ public class MultipartUploadParser {
 		}
 	}
 
-	private DiskFileItemFactory setupFileItemFactory(File repository, ServletContext context) {
+	private DiskFileItemFactory setupFileItemFactory(File repository, ServletContext context, int threshold) {
+		// the builder's buffer size is the in-memory threshold of the items
 		return DiskFileItemFactory.builder()
-				.setBufferSize(DiskFileItemFactory.DEFAULT_THRESHOLD)
+				.setBufferSize(threshold > 0 ? threshold : DiskFileItemFactory.DEFAULT_THRESHOLD)
 				.setPath(repository.toPath())
 				.setFileCleaningTracker(JakartaFileCleaner.getFileCleaningTracker(context))
 				.get();
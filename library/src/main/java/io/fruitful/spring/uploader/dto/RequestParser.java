@@ -28,10 +28,15 @@ public class RequestParser {
 	private static final String UUID_PARAM = "qquuid";
 	private static final String PART_FILENAME_PARAM = "qqfilename";
 	private static final String PART_FILESIZE_PARAM = "qqfilesize";
+	private static final String PART_BYTE_OFFSET_PARAM = "qqpartbyteoffset";
+	private static final String CHUNK_SIZE_PARAM = "qqchunksize";
 	private static final String ORIGINAL_PARAM = "original";
 	private static final String METHOD_PARAM = "_method";
 
 	private static final String GENERATE_ERROR_PARAM = "generateError";
+	// optional client checksums, CRC32C of the chunk and SHA-256 of the whole file as hex
+	private static final String CHUNK_CHECKSUM_HEADER = "X-Chunk-Checksum";
+	private static final String FILE_CHECKSUM_HEADER = "X-File-Checksum";
 
 	private String filename;
 	private FileItem uploadItem;
@@ -40,11 +45,15 @@ public class RequestParser {
 	private int partIndex = -1;
 	private long totalFileSize;
 	private Long fileSize;
+	private Long partByteOffset;
+	private Long chunkSize;
 	private int totalParts;
 	private String uuid;
 	private String originalFilename;
 	private String method;
 	private Boolean original;
+	private String chunkChecksum;
+	private String fileChecksum;
 
 	private final Map<String, String> customParams = new HashMap<>();
 
@@ -72,6 +81,9 @@ public class RequestParser {
 			parseQueryStringParams(requestParser, request);
 		}
 
+		requestParser.chunkChecksum = request.getHeader(CHUNK_CHECKSUM_HEADER);
+		requestParser.fileChecksum = request.getHeader(FILE_CHECKSUM_HEADER);
+
 		removeQqParams(requestParser.customParams);
 		return requestParser;
 	}
@@ -115,6 +127,9 @@ public class RequestParser {
 			}
 		}
 
+		requestParser.partByteOffset = parseLong(multipartUploadParser.getParams().get(PART_BYTE_OFFSET_PARAM));
+		requestParser.chunkSize = parseLong(multipartUploadParser.getParams().get(CHUNK_SIZE_PARAM));
+
 		requestParser.customParams.putAll(multipartUploadParser.getParams());
 
 		if (requestParser.uuid == null) {
@@ -158,6 +173,14 @@ public class RequestParser {
 			requestParser.fileSize = null;
 		}
 
+		if (requestParser.partByteOffset == null) {
+			requestParser.partByteOffset = parseLong(req.getParameter(PART_BYTE_OFFSET_PARAM));
+		}
+
+		if (requestParser.chunkSize == null) {
+			requestParser.chunkSize = parseLong(req.getParameter(CHUNK_SIZE_PARAM));
+		}
+
 		Enumeration<String> paramNames = req.getParameterNames();
 		while (paramNames.hasMoreElements()) {
 			String paramName = paramNames.nextElement();
@@ -229,6 +252,14 @@ public class RequestParser {
 		return content.toString();
 	}
 
+	private static Long parseLong(String longValue) {
+		try {
+			return longValue != null ? Long.parseLong(longValue) : null;
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
 	private static Boolean formatBooleanString(String boolValue) {
 		try {
 			return StringHelper.hasText(boolValue) ? Boolean.valueOf(boolValue) : null;
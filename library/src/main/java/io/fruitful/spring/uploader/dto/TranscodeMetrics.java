@@ -0,0 +1,36 @@
+package io.fruitful.spring.uploader.dto;
+
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class TranscodeMetrics {
+
+	private CommandType type;
+	private int limit;
+	private int running;
+	private int queueDepth;
+	private long submitted;
+	// rejected because the queue was full
+	private long rejected;
+	// dropped because their deadline passed while waiting
+	private long expired;
+	private long completed;
+	private long totalWaitMillis;
+	private long maxWaitMillis;
+	private long totalRunMillis;
+	private long maxRunMillis;
+
+	public long getAverageWaitMillis() {
+		long started = completed + running;
+		return started == 0 ? 0 : totalWaitMillis / started;
+	}
+
+	public long getAverageRunMillis() {
+		return completed == 0 ? 0 : totalRunMillis / completed;
+	}
+}
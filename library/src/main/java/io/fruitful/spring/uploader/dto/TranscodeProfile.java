@@ -0,0 +1,35 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@Builder
+public class TranscodeProfile {
+
+	// suffix of the rendition file name, e.g. 720p gives <name>_720p.mp4
+	private String name;
+	@Builder.Default
+	private String videoCodec = "libx264";
+	@Builder.Default
+	private String preset = "superfast";
+	@Builder.Default
+	private int crf = 25;
+	// the video is scaled down to this height keeping its aspect ratio, never up. Source height when not set
+	private Integer maxHeight;
+	@Builder.Default
+	private String audioBitrate = "128k";
+
+	/**
+	 * 1080p, 720p and 480p renditions encoded on the CPU with libx264.
+	 */
+	public static List<TranscodeProfile> ladder() {
+		return List.of(TranscodeProfile.builder().name("1080p").maxHeight(1080).crf(23).build(),
+		               TranscodeProfile.builder().name("720p").maxHeight(720).crf(24).build(),
+		               TranscodeProfile.builder().name("480p").maxHeight(480).crf(26).audioBitrate("96k").build());
+	}
+}
@@ -1,9 +1,16 @@
 package io.fruitful.spring.uploader.dto;
 
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
+import io.fruitful.spring.uploader.enumeration.ExecutionMode;
+import io.fruitful.spring.uploader.enumeration.FileSupportEnum;
+import io.fruitful.spring.uploader.service.TranscodeScheduler;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Map;
+import java.util.Set;
+
 @Getter
 @Setter
 @Builder
@@ -15,4 +22,25 @@ public class UploadConfig {
 	private String ffmpegPath;
 	private String ffmpegThumbExt;
 	private String ffmpegThumbStartTime;
+	// write chunks in place into one preallocated <uuid>.partial file instead of one file per chunk
+	private boolean preallocateChunks;
+	// read non-multipart chunks with a ReadListener, the servlet must be registered with async support
+	private boolean asyncChunkIngestion;
+	// milliseconds an async chunk may take to arrive before it is failed, 2 minutes when not set
+	private long asyncChunkTimeout;
+	// multipart items up to this many bytes stay in memory instead of the temporary folder, 10 KB when not set
+	private int multipartThreshold;
+	// chunks are synced to disk under ALWAYS only, not synced when not set
+	private DurabilityPolicy durabilityPolicy;
+	// sniff the content type of the first chunk and keep it in the chunk manifest, finalization then skips detection
+	private boolean detectContentType;
+	// reject an upload as soon as its first chunk is of another type, all types accepted when empty. Implies
+	// detectContentType
+	private Set<FileSupportEnum> acceptedFileTypes;
+	// MIME types and extensions added to the built-in ones of each file type, see FileSupportEnum#register
+	private Map<FileSupportEnum, Set<String>> additionalFileTypes;
+	// SERVLET_THREAD when not set
+	private ExecutionMode executionMode;
+	// limits the ffmpeg processes, TranscodeScheduler.getDefault() when not set
+	private TranscodeScheduler transcodeScheduler;
 }
@@ -0,0 +1,27 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class UploadStatus {
+
+	private String uuid;
+	private int totalParts;
+	private long totalFileSize;
+	// sniffed from the first part, null when not detected
+	private String contentType;
+	// latest record of every stored part by part index
+	private Map<Integer, ChunkPart> parts;
+	private List<Integer> missingParts;
+
+	public boolean isComplete() {
+		return totalParts > 0 && missingParts.isEmpty();
+	}
+}
@@ -0,0 +1,25 @@
+package io.fruitful.spring.uploader.dto;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class VideoPreview {
+
+	// frames tiled left to right, top to bottom
+	private String spriteFilename;
+	// WebVTT cues pointing at the tile of every time range, <sprite>#xywh=x,y,w,h
+	private String vttFilename;
+	// the candidate frame picked as poster
+	private String posterFilename;
+	private int frameCount;
+	private int columns;
+	private int rows;
+	private int tileWidth;
+	private int tileHeight;
+	// seconds between two frames
+	private double interval;
+}
@@ -0,0 +1,8 @@
+package io.fruitful.spring.uploader.enumeration;
+
+public enum CommandType {
+	// long running conversions (ffmpeg transcodes, thumbnails)
+	ENCODE,
+	// short metadata reads (ffprobe)
+	PROBE
+}
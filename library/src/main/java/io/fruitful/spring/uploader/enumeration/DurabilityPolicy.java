@@ -0,0 +1,12 @@
+package io.fruitful.spring.uploader.enumeration;
+
+public enum DurabilityPolicy {
+	// every chunk, finalized upload and derived file (thumbnails, converted images) is synced when written
+	ALWAYS,
+	// only the finalized upload is synced, followed by its folder once it is renamed into place
+	FINAL_ONLY,
+	// as FINAL_ONLY, but finalized uploads are synced in batches on a timer shared by concurrent finalizations
+	GROUP_COMMIT,
+	// nothing is synced, the operating system writes back when it sees fit
+	NONE
+}
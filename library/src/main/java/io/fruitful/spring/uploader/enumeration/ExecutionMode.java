@@ -0,0 +1,8 @@
+package io.fruitful.spring.uploader.enumeration;
+
+public enum ExecutionMode {
+	// everything runs on the container thread that received the request
+	SERVLET_THREAD,
+	// requests run on virtual threads, CPU bound image work runs on a bounded platform pool
+	VIRTUAL_THREAD
+}
@@ -1,42 +1,141 @@
 package io.fruitful.spring.uploader.enumeration;
 
+import io.fruitful.spring.uploader.constant.MediaConst;
 import io.fruitful.spring.uploader.util.StringHelper;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 @RequiredArgsConstructor
 @Getter
 public enum FileSupportEnum {
 
-	IMAGE("image/jpg, image/jpeg, image/png, image/gif, image/bmp, image/svg+xml, image/tiff, image/vnd.ms-photo, image/webp, image/x-ms-bmp"),
-	READABLE_IMAGE("image/jpg, image/jpeg, image/png, image/bmp, image/wbmp"),
-	GIF_IMAGE("image/gif"),
-	HEIC_IMAGE("image/heic"),
-	AUDIO("audio/mp3, audio/mpeg, audio/m4a, audio/mp4, audio/x-m4a, audio/wav, audio/x-wav, audio/x-ms-wma, video/x-ms-asf"),
-	VIDEO("video/mp4, video/mov, video/quicktime, video/m4v, video/x-m4v, video/x-ms-wmv"),
-	FILE("");
+	IMAGE("image/jpg, image/jpeg, image/png, image/gif, image/bmp, image/svg+xml, image/tiff, image/vnd.ms-photo, image/webp, image/x-ms-bmp",
+	      List.of()),
+	READABLE_IMAGE("image/jpg, image/jpeg, image/png, image/bmp, image/wbmp", MediaConst.EXT_STATIC_IMAGE),
+	GIF_IMAGE("image/gif", List.of(MediaConst.EXT_GIF)),
+	HEIC_IMAGE("image/heic", List.of(MediaConst.HEIC_MINE_TYPE)),
+	AUDIO("audio/mp3, audio/mpeg, audio/m4a, audio/mp4, audio/x-m4a, audio/wav, audio/x-wav, audio/x-ms-wma, video/x-ms-asf",
+	      MediaConst.EXT_AUDIO),
+	VIDEO("video/mp4, video/mov, video/quicktime, video/m4v, video/x-m4v, video/x-ms-wmv", MediaConst.EXT_VIDEO),
+	FILE("", List.of());
+
+	private static final String MIME_SEPARATOR = "/";
+
+	// lowercase MIME types and extensions to the categories listing them, replaced as a whole on registration
+	private static volatile Index index = new Index(Map.of(), Map.of()).with(defaultTypes());
 
 	private final String types;
+	private final Collection<String> extensions;
+
+	public boolean supports(String contentType) {
+		return getCategories(contentType).contains(this);
+	}
+
+	public boolean supportsExtension(String ext) {
+		return getCategoriesByExtension(ext).contains(this);
+	}
+
+	/**
+	 * @return the categories listing the MIME type, in declaration order
+	 */
+	public static Set<FileSupportEnum> getCategories(String contentType) {
+		return lookup(index.contentTypes, contentType);
+	}
+
+	/**
+	 * @return the categories listing the file extension, in declaration order
+	 */
+	public static Set<FileSupportEnum> getCategoriesByExtension(String ext) {
+		return lookup(index.extensions, ext);
+	}
 
 	public static String getFileType(String contentType) {
-		if (contentType != null) {
-			for (FileSupportEnum item : FileSupportEnum.values()) {
-				if (item.getTypes().toLowerCase().contains(contentType.toLowerCase())) {
-					return item.name();
-				}
-			}
-		}
-		return null;
+		FileSupportEnum fileSupport = getFileSupport(contentType);
+		return fileSupport != null ? fileSupport.name() : null;
 	}
 
 	public static FileSupportEnum getFileSupport(String contentType) {
-		return StringHelper.hasText(contentType) ?
-		       Arrays.stream(FileSupportEnum.values())
-				       .filter(item -> item.getTypes().toLowerCase().contains(contentType.toLowerCase()))
-				       .findFirst()
-				       .orElse(null) :
-		       null;
+		Set<FileSupportEnum> categories = getCategories(contentType);
+		return categories.isEmpty() ? null : categories.iterator().next();
+	}
+
+	/**
+	 * Add MIME types (containing a slash) and file extensions to categories, on top of the built-in ones.
+	 */
+	public static synchronized void register(Map<FileSupportEnum, ? extends Collection<String>> typesByCategory) {
+		if (typesByCategory != null && !typesByCategory.isEmpty()) {
+			index = index.with(typesByCategory);
+		}
+	}
+
+	private static Set<FileSupportEnum> lookup(Map<String, Set<FileSupportEnum>> categories, String key) {
+		if (StringHelper.isEmpty(key)) {
+			return Collections.emptySet();
+		}
+		return categories.getOrDefault(key.trim().toLowerCase(Locale.ROOT), Collections.emptySet());
+	}
+
+	private static Map<FileSupportEnum, Collection<String>> defaultTypes() {
+		Map<FileSupportEnum, Collection<String>> typesByCategory = new HashMap<>();
+		for (FileSupportEnum item : values()) {
+			List<String> types = new ArrayList<>(item.extensions);
+			types.addAll(Arrays.asList(item.types.split(",")));
+			typesByCategory.put(item, types);
+		}
+		return typesByCategory;
+	}
+
+	private static final class Index {
+		private final Map<String, Set<FileSupportEnum>> contentTypes;
+		private final Map<String, Set<FileSupportEnum>> extensions;
+
+		private Index(Map<String, Set<FileSupportEnum>> contentTypes, Map<String, Set<FileSupportEnum>> extensions) {
+			this.contentTypes = contentTypes;
+			this.extensions = extensions;
+		}
+
+		private Index with(Map<FileSupportEnum, ? extends Collection<String>> typesByCategory) {
+			Map<String, EnumSet<FileSupportEnum>> newContentTypes = copy(contentTypes);
+			Map<String, EnumSet<FileSupportEnum>> newExtensions = copy(extensions);
+			typesByCategory.forEach((category, types) -> {
+				for (String type : types) {
+					if (StringHelper.isEmpty(type)) {
+						continue;
+					}
+					String key = type.trim().toLowerCase(Locale.ROOT);
+					Map<String, EnumSet<FileSupportEnum>> target = key.contains(MIME_SEPARATOR) ? newContentTypes :
+					                                               newExtensions;
+					target.computeIfAbsent(key, k -> EnumSet.noneOf(FileSupportEnum.class)).add(category);
+				}
+			});
+			return new Index(freeze(newContentTypes), freeze(newExtensions));
+		}
+
+		private static Map<String, EnumSet<FileSupportEnum>> copy(Map<String, Set<FileSupportEnum>> categories) {
+			Map<String, EnumSet<FileSupportEnum>> copy = new HashMap<>();
+			categories.forEach((key, value) -> {
+				EnumSet<FileSupportEnum> categorySet = EnumSet.noneOf(FileSupportEnum.class);
+				categorySet.addAll(value);
+				copy.put(key, categorySet);
+			});
+			return copy;
+		}
+
+		private static Map<String, Set<FileSupportEnum>> freeze(Map<String, EnumSet<FileSupportEnum>> categories) {
+			Map<String, Set<FileSupportEnum>> frozen = new HashMap<>();
+			categories.forEach((key, value) -> frozen.put(key, Collections.unmodifiableSet(value)));
+			return Map.copyOf(frozen);
+		}
 	}
 }
@@ -0,0 +1,8 @@
+package io.fruitful.spring.uploader.enumeration;
+
+public enum MediaJobStatus {
+	QUEUED,
+	RUNNING,
+	DONE,
+	FAILED
+}
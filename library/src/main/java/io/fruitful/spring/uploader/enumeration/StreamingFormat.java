@@ -0,0 +1,21 @@
+package io.fruitful.spring.uploader.enumeration;
+
+import lombok.Getter;
+
+@Getter
+public enum StreamingFormat {
+	// HLS with MPEG-TS segments
+	HLS("master.m3u8", "application/vnd.apple.mpegurl"),
+	// HLS with fragmented MP4 (CMAF) segments
+	CMAF("master.m3u8", "application/vnd.apple.mpegurl"),
+	// MPEG-DASH with fragmented MP4 segments
+	DASH("manifest.mpd", "application/dash+xml");
+
+	private final String manifestName;
+	private final String contentType;
+
+	StreamingFormat(String manifestName, String contentType) {
+		this.manifestName = manifestName;
+		this.contentType = contentType;
+	}
+}
@@ -0,0 +1,13 @@
+package io.fruitful.spring.uploader.enumeration;
+
+/**
+ * Order in which the transcode scheduler starts waiting commands, the first constant runs first.
+ */
+public enum TranscodePriority {
+	// thumbnails, previews and image conversions, an upload is usually waiting for them
+	HIGH,
+	// probes and audio conversions
+	NORMAL,
+	// full video encodes
+	LOW
+}
@@ -0,0 +1,8 @@
+package io.fruitful.spring.uploader.exception;
+
+public class MediaJobRejectedException extends Exception {
+
+	public MediaJobRejectedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,8 @@
+package io.fruitful.spring.uploader.exception;
+
+public class TranscodeRejectedException extends Exception {
+
+	public TranscodeRejectedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,8 @@
+package io.fruitful.spring.uploader.exception;
+
+public class UnsupportedContentTypeException extends Exception {
+
+	public UnsupportedContentTypeException(String message) {
+		super(message);
+	}
+}
@@ -1,5 +1,7 @@
 package io.fruitful.spring.uploader.service;
 
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
 import io.fruitful.spring.uploader.util.FileUtils;
 import lombok.extern.slf4j.Slf4j;
 
@@ -12,6 +14,10 @@ public class AudioProcessor extends MediaProcessor {
 		super(ffmpegPath);
 	}
 
+	public AudioProcessor(String ffmpegPath, TranscodeScheduler scheduler) {
+		super(ffmpegPath, scheduler);
+	}
+
 	@Override
 	public File process(String input, String destination) {
 
@@ -20,7 +26,9 @@ public class AudioProcessor extends MediaProcessor {
 			FileUtils.silenceDelete(outputFile);
 
 			new ShellCommandExecutor(ffmpegPath, "-y", "-loglevel", "panic", "-i", input, "-codec:a", "libmp3lame",
-			                         "-b:a", "128k", destination).execute(CONVERSION_TIMEOUT);
+			                         "-b:a", "128k", destination).execute(scheduler, CommandType.ENCODE,
+			                                                              TranscodePriority.NORMAL,
+			                                                              CONVERSION_TIMEOUT);
 
 			if (outputFile.exists() && outputFile.length() > 0) {
 				return outputFile;
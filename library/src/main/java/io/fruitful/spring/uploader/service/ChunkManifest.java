@@ -0,0 +1,153 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.dto.ChunkPart;
+import io.fruitful.spring.uploader.dto.RequestParser;
+import io.fruitful.spring.uploader.dto.UploadStatus;
+import io.fruitful.spring.uploader.util.ChecksumHelper;
+import io.fruitful.spring.uploader.util.FileUtils;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps a {@code <uuid>.manifest} file next to the parts of a chunked upload with one line per stored part (index,
+ * size, CRC32C and time), so an interrupted upload can be resumed by sending only the missing parts. A part is
+ * recorded once it is completely on disk, a part written again is recorded again and the latest record wins.
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class ChunkManifest {
+
+	public static final String MANIFEST_EXTENSION = "manifest";
+
+	private static final String SEPARATOR = "\t";
+	private static final String RECORD_TOTAL = "TOTAL";
+	private static final String RECORD_PART = "PART";
+	private static final String RECORD_CONTENT_TYPE = "TYPE";
+
+	// serializes the appends of parts of the same upload
+	private static final UploadLockRegistry LOCKS = new UploadLockRegistry();
+
+	public static File getManifestFile(File dir, String uuid) {
+		return new File(dir, uuid + FileUtils.EXTENSION_SEPARATOR + MANIFEST_EXTENSION);
+	}
+
+	/**
+	 * Append the record of a part that is completely stored.
+	 */
+	public static void recordPart(File dir, RequestParser request, long size, long checksum) throws IOException {
+		append(dir, request, String.join(SEPARATOR, RECORD_PART, String.valueOf(request.getPartIndex()),
+		                                 String.valueOf(size), ChecksumHelper.toHex(checksum),
+		                                 String.valueOf(System.currentTimeMillis())));
+	}
+
+	/**
+	 * Append the content type detected from the first part, so finalization does not detect it again.
+	 */
+	public static void recordContentType(File dir, RequestParser request, String contentType) throws IOException {
+		append(dir, request, String.join(SEPARATOR, RECORD_CONTENT_TYPE, contentType));
+	}
+
+	private static void append(File dir, RequestParser request, String record) throws IOException {
+		File manifestFile = getManifestFile(dir, request.getUuid());
+		try (UploadLockRegistry.Handle ignored = LOCKS.lock(request.getUuid());
+		     BufferedWriter writer = Files.newBufferedWriter(manifestFile.toPath(), StandardCharsets.UTF_8,
+		                                                     StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			if (manifestFile.length() == 0) {
+				writer.write(String.join(SEPARATOR, RECORD_TOTAL, String.valueOf(request.getTotalParts()),
+				                         String.valueOf(request.getTotalFileSize())));
+				writer.newLine();
+			} else if (!endsWithNewLine(manifestFile)) {
+				// terminate a line cut by a crash, so the record is not glued onto it
+				writer.newLine();
+			}
+			writer.write(record);
+			writer.newLine();
+		}
+	}
+
+	private static boolean endsWithNewLine(File manifestFile) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(manifestFile, "r")) {
+			file.seek(file.length() - 1);
+			return file.read() == '\n';
+		}
+	}
+
+	/**
+	 * @param totalParts number of parts of the upload, read from the manifest when 0
+	 * @return the stored and missing parts, null if nothing was stored for the upload yet
+	 */
+	public static UploadStatus getStatus(File dir, String uuid, int totalParts) throws IOException {
+		File manifestFile = getManifestFile(dir, uuid);
+		if (!manifestFile.exists()) {
+			return null;
+		}
+		List<String> lines;
+		try (UploadLockRegistry.Handle ignored = LOCKS.lock(uuid)) {
+			lines = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8);
+		}
+
+		UploadStatus status = new UploadStatus();
+		status.setUuid(uuid);
+		status.setTotalParts(totalParts);
+		Map<Integer, ChunkPart> parts = new TreeMap<>();
+		for (String line : lines) {
+			// a line cut by a crash, possibly with the next record glued onto it, is skipped and its part is
+			// reported missing and sent again
+			try {
+				if (!readRecord(line.split(SEPARATOR), status, parts)) {
+					log.warn("Skipping incomplete manifest record of upload {}: {}", uuid, line);
+				}
+			} catch (NumberFormatException e) {
+				log.warn("Skipping corrupt manifest record of upload {}: {}", uuid, line);
+			}
+		}
+		status.setParts(parts);
+
+		List<Integer> missingParts = new ArrayList<>();
+		for (int partIndex = 0; partIndex < status.getTotalParts(); partIndex++) {
+			if (!parts.containsKey(partIndex)) {
+				missingParts.add(partIndex);
+			}
+		}
+		status.setMissingParts(missingParts);
+		return status;
+	}
+
+	/**
+	 * @return false if the record is incomplete
+	 */
+	private static boolean readRecord(String[] fields, UploadStatus status, Map<Integer, ChunkPart> parts) {
+		if (RECORD_TOTAL.equals(fields[0]) && fields.length >= 3) {
+			int totalParts = Integer.parseInt(fields[1]);
+			status.setTotalFileSize(Long.parseLong(fields[2]));
+			if (status.getTotalParts() <= 0) {
+				status.setTotalParts(totalParts);
+			}
+		} else if (RECORD_PART.equals(fields[0]) && fields.length >= 5) {
+			ChunkPart part = new ChunkPart();
+			part.setIndex(Integer.parseInt(fields[1]));
+			part.setSize(Long.parseLong(fields[2]));
+			part.setChecksum(Long.parseLong(fields[3], 16));
+			part.setTimestamp(Long.parseLong(fields[4]));
+			parts.put(part.getIndex(), part);
+		} else if (RECORD_CONTENT_TYPE.equals(fields[0]) && fields.length >= 2) {
+			status.setContentType(fields[1]);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,179 @@
+package io.fruitful.spring.uploader.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.fruitful.spring.uploader.dto.ContentIndexEntry;
+import io.fruitful.spring.uploader.dto.MediaInfo;
+import io.fruitful.spring.uploader.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+
+/**
+ * Content-addressed index of processed uploads, one {@code <sha256>_<size>.json} entry per distinct content in the
+ * index folder. The key is the checksum and length of the content as uploaded, even when it is stored converted. A
+ * finalized upload matching an entry reuses the stored file and its media info, so identical content is stored,
+ * thumbnailed and transcoded once. Media still processing in the background is indexed as it is and
+ * {@link #update updated} once its processing is done.
+ */
+@Slf4j
+public class ContentIndex {
+
+	public static final String ENTRY_EXTENSION = "json";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+	private final File indexDir;
+	// serializes writers of the same content
+	private final UploadLockRegistry locks = new UploadLockRegistry();
+
+	public ContentIndex(File indexDir) {
+		this.indexDir = indexDir;
+		FileUtils.mkDir(indexDir);
+	}
+
+	/**
+	 * @return the entry of the content, null when the content is unknown or its stored file is gone
+	 */
+	public ContentIndexEntry find(String checksum, long size) {
+		String key = getKey(checksum, size);
+		File entryFile = getEntryFile(key);
+		try (UploadLockRegistry.Handle ignored = locks.lock(key)) {
+			if (!entryFile.exists()) {
+				return null;
+			}
+			ContentIndexEntry entry = MAPPER.readValue(entryFile, ContentIndexEntry.class);
+			File blob = new File(entry.getBlobPath());
+			if (!blob.exists() || blob.length() != entry.getBlobSize()) {
+				log.info("Dropping content index entry {}, file {} is gone", key, entry.getBlobPath());
+				FileUtils.silenceDelete(entryFile);
+				return null;
+			}
+			return entry;
+		} catch (IOException e) {
+			log.error("Unable to read content index entry {}", key, e);
+			FileUtils.silenceDelete(entryFile);
+			return null;
+		}
+	}
+
+	/**
+	 * Index processed content. Content already indexed keeps its first entry.
+	 *
+	 * @param checksum SHA-256 of the content as uploaded
+	 * @param size     length of the content as uploaded
+	 * @param blob     the stored file, the converted one when the upload was converted
+	 */
+	public void put(String checksum, long size, File blob, boolean original, MediaInfo media) {
+		String key = getKey(checksum, size);
+		File entryFile = getEntryFile(key);
+		try (UploadLockRegistry.Handle ignored = locks.lock(key)) {
+			if (entryFile.exists()) {
+				return;
+			}
+			ContentIndexEntry entry = new ContentIndexEntry();
+			entry.setChecksum(checksum);
+			entry.setSize(size);
+			entry.setOriginal(original);
+			write(key, entry, blob, media);
+		} catch (IOException e) {
+			log.error("Unable to write content index entry {}", key, e);
+		}
+	}
+
+	/**
+	 * Replace the stored file and media info of indexed content once its background processing is done, later
+	 * uploads of the content then reuse the processed media. Content that is not indexed is left out.
+	 *
+	 * @param checksum SHA-256 of the content as uploaded, see {@link MediaInfo#getChecksum()}
+	 * @param size     length of the content as uploaded, see {@link MediaInfo#getSize()}
+	 * @param blob     the stored file after processing
+	 */
+	public void update(String checksum, long size, File blob, MediaInfo media) {
+		String key = getKey(checksum, size);
+		File entryFile = getEntryFile(key);
+		try (UploadLockRegistry.Handle ignored = locks.lock(key)) {
+			if (!entryFile.exists()) {
+				return;
+			}
+			write(key, MAPPER.readValue(entryFile, ContentIndexEntry.class), blob, media);
+		} catch (IOException e) {
+			log.error("Unable to update content index entry {}", key, e);
+		}
+	}
+
+	private void write(String key, ContentIndexEntry entry, File blob, MediaInfo media) throws IOException {
+		entry.setBlobPath(blob.getAbsolutePath());
+		entry.setBlobSize(blob.length());
+		entry.setMedia(media);
+		entry.setIndexedTime(System.currentTimeMillis());
+		// written aside and moved so readers never see a partial entry
+		File tempFile = new File(indexDir, key + FileUtils.EXTENSION_SEPARATOR + UUID.randomUUID() + ".tmp");
+		MAPPER.writeValue(tempFile, entry);
+		FileUtils.move(tempFile, getEntryFile(key));
+	}
+
+	/**
+	 * Build the media info of a new upload of indexed content. The stored file is hard linked under a new name in
+	 * the upload folder, or copied when the file system does not support links, so each upload owns its file.
+	 * Thumbnails, previews and renditions are not duplicated: every upload of the content refers to the ones of the
+	 * first, and they must be kept as long as any of these uploads is. Media still processing keeps its processing
+	 * flag, the new upload is processed from its own file.
+	 */
+	public MediaInfo reuse(ContentIndexEntry entry, File uploadDir, String guid, String originalFilename)
+			throws IOException {
+		// a deep copy, the caller is free to change it
+		MediaInfo media = MAPPER.convertValue(entry.getMedia(), MediaInfo.class);
+		media.setGuid(guid);
+		media.setOriginalFilename(originalFilename);
+
+		File blob = new File(entry.getBlobPath());
+		String ext = FilenameUtils.getExtension(blob.getName());
+		File link = new File(uploadDir, UUID.randomUUID().toString().replace("-", "") +
+		                                (ext.isEmpty() ? "" : FileUtils.EXTENSION_SEPARATOR + ext));
+		try {
+			Files.createLink(link.toPath(), blob.toPath());
+		} catch (UnsupportedOperationException | IOException e) {
+			log.debug("Unable to link {}, copying it", blob.getAbsolutePath(), e);
+			copy(blob, link);
+		}
+		// the url of media still processing names the output to come after the stored file too
+		String blobName = FilenameUtils.getBaseName(blob.getName());
+		String linkName = FilenameUtils.getBaseName(link.getName());
+		media.setUrl(rename(media.getUrl(), blobName, linkName));
+		media.setFilename(rename(media.getFilename(), blobName, linkName));
+		return media;
+	}
+
+	private static void copy(File blob, File target) throws IOException {
+		try {
+			Files.copy(blob.toPath(), target.toPath());
+		} catch (IOException e) {
+			FileUtils.silenceDelete(target);
+			throw e;
+		}
+	}
+
+	private static String rename(String filename, String fromBaseName, String toBaseName) {
+		if (filename == null || !FilenameUtils.getBaseName(filename).equals(fromBaseName)) {
+			return filename;
+		}
+		String ext = FilenameUtils.getExtension(filename);
+		return ext.isEmpty() ? toBaseName : toBaseName + FileUtils.EXTENSION_SEPARATOR + ext;
+	}
+
+	private File getEntryFile(String key) {
+		return new File(indexDir, key + FileUtils.EXTENSION_SEPARATOR + ENTRY_EXTENSION);
+	}
+
+	private static String getKey(String checksum, long size) {
+		return checksum + "_" + size;
+	}
+}
@@ -0,0 +1,139 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.util.FileUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Syncs files in batches: callers queue a file and wait, and every interval the queued files are synced in
+ * parallel on the blocking executor and then each of their folders once, so concurrent finalizations share the
+ * folder syncs and the waits of the device. Once shut down, files are synced by the caller.
+ */
+@Slf4j
+public class GroupCommitSyncer {
+
+	public static final long DEFAULT_INTERVAL_MILLIS = 10;
+
+	private final ConcurrentLinkedQueue<PendingSync> pending = new ConcurrentLinkedQueue<>();
+	private final ScheduledExecutorService timer;
+	private final AtomicLong batches = new AtomicLong();
+	private volatile boolean closed;
+
+	public GroupCommitSyncer(long intervalMillis) {
+		timer = Executors.newSingleThreadScheduledExecutor(
+				Thread.ofPlatform().name("uploader-group-commit").daemon().factory());
+		long interval = intervalMillis > 0 ? intervalMillis : DEFAULT_INTERVAL_MILLIS;
+		timer.scheduleWithFixedDelay(this::commit, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Block until the file and its folder are synced with the next batch.
+	 */
+	public void sync(File file) throws IOException {
+		if (closed) {
+			FileUtils.sync(file);
+			FileUtils.syncDirectory(file.getAbsoluteFile().getParentFile());
+			return;
+		}
+		PendingSync sync = new PendingSync(file);
+		pending.add(sync);
+		if (closed) {
+			// queued after the last batch of shutdown, nobody else will run it
+			commit();
+		}
+		try {
+			sync.done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while syncing " + file.getAbsolutePath(), e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+	}
+
+	/**
+	 * Number of batches synced so far.
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public void shutdown() {
+		closed = true;
+		timer.shutdown();
+		// whoever is still waiting gets synced by this last batch
+		commit();
+	}
+
+	private void commit() {
+		List<PendingSync> batch = new ArrayList<>();
+		PendingSync sync;
+		while ((sync = pending.poll()) != null) {
+			batch.add(sync);
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		// the device queues the flushes of the whole batch instead of one after another
+		List<CompletableFuture<Void>> fileSyncs = new ArrayList<>();
+		for (PendingSync fileSync : batch) {
+			fileSyncs.add(CompletableFuture.runAsync(() -> {
+				try {
+					FileUtils.sync(fileSync.file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, UploadExecutors.getBlockingExecutor()));
+		}
+		Set<File> folders = new LinkedHashSet<>();
+		for (int i = 0; i < batch.size(); i++) {
+			PendingSync fileSync = batch.get(i);
+			try {
+				fileSyncs.get(i).join();
+				folders.add(fileSync.file.getAbsoluteFile().getParentFile());
+			} catch (CompletionException e) {
+				Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() :
+				                  e.getCause();
+				fileSync.done.completeExceptionally(cause);
+			}
+		}
+		List<CompletableFuture<Void>> folderSyncs = new ArrayList<>();
+		for (File folder : folders) {
+			folderSyncs.add(CompletableFuture.runAsync(() -> FileUtils.syncDirectory(folder),
+			                                           UploadExecutors.getBlockingExecutor()));
+		}
+		CompletableFuture.allOf(folderSyncs.toArray(new CompletableFuture[0])).join();
+		for (PendingSync fileSync : batch) {
+			fileSync.done.complete(null);
+		}
+		batches.incrementAndGet();
+		log.debug("Synced {} files in {} folders in {} ms", batch.size(), folders.size(),
+		          System.currentTimeMillis() - start);
+	}
+
+	private static final class PendingSync {
+		private final File file;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		private PendingSync(File file) {
+			this.file = file;
+		}
+	}
+}
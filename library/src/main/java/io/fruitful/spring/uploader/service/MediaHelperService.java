@@ -2,10 +2,24 @@ package io.fruitful.spring.uploader.service;
 
 import io.fruitful.spring.uploader.constant.MediaConst;
 import io.fruitful.spring.uploader.dto.ChunkDoneConfig;
+import io.fruitful.spring.uploader.dto.CommandResult;
 import io.fruitful.spring.uploader.dto.MediaInfo;
+import io.fruitful.spring.uploader.dto.MediaManifest;
+import io.fruitful.spring.uploader.dto.MediaProbeResult;
+import io.fruitful.spring.uploader.dto.MediaRendition;
 import io.fruitful.spring.uploader.dto.MediaThumbnailInfo;
+import io.fruitful.spring.uploader.dto.TranscodeProfile;
+import io.fruitful.spring.uploader.dto.VideoPreview;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
+import io.fruitful.spring.uploader.enumeration.ExecutionMode;
 import io.fruitful.spring.uploader.enumeration.FileSupportEnum;
+import io.fruitful.spring.uploader.enumeration.StreamingFormat;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.exception.TranscodeRejectedException;
+import io.fruitful.spring.uploader.util.DurationHelper;
 import io.fruitful.spring.uploader.util.FileUtils;
+import io.fruitful.spring.uploader.util.ImagePipeline;
 import io.fruitful.spring.uploader.util.ImageUtils;
 import io.fruitful.spring.uploader.util.StringHelper;
 import lombok.AccessLevel;
@@ -17,14 +31,28 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class MediaHelperService {
 
+	public static final int DEFAULT_SEGMENT_DURATION = 6;
+
+	/**
+	 * Fill the media from the uploaded file. Failures leave the media as uploaded, except a conversion the scheduler
+	 * rejected: the host is overloaded and the upload has to be finalized again later.
+	 *
+	 * @throws IOException if the scheduler rejected a conversion
+	 */
 	public static void saveMediaInfo(File uploadDir, MediaInfo media, File file, String fileType, String ext,
-	                                 boolean origin, ChunkDoneConfig uploadConfig) {
+	                                 boolean origin, ChunkDoneConfig uploadConfig) throws IOException {
 		try {
 			if (!file.exists()) {
 				log.warn("File not exists {}", file.getName());
@@ -35,71 +63,89 @@ public class MediaHelperService {
 				ext = FileUtils.CONTENT_MAP.get(mediaContentType);
 			}
 
+			ExecutionMode executionMode = uploadConfig.getExecutionMode();
 			if (isStaticImage(ext, mediaContentType)) {
-				saveStaticImage(uploadDir, media, file, origin, ext);
+				String imageExt = ext;
+				UploadExecutors.compute(executionMode, () -> {
+					saveStaticImage(uploadDir, media, file, origin, imageExt, uploadConfig.getDurabilityPolicy());
+					return null;
+				});
 
 			} else if (isGifImage(ext, mediaContentType)) {
-				saveGifImage(uploadDir, media, file, ext);
+				String imageExt = ext;
+				UploadExecutors.compute(executionMode, () -> {
+					saveGifImage(uploadDir, media, file, imageExt, uploadConfig.getDurabilityPolicy());
+					return null;
+				});
 
 			} else if (FileSupportEnum.VIDEO.name().equals(fileType)) {
+				saveMediaProbe(media, file, uploadConfig);
 				saveVideo(uploadDir, media, file, ext, uploadConfig);
 
 			} else if (FileSupportEnum.AUDIO.name().equals(fileType)) {
+				saveMediaProbe(media, file, uploadConfig);
 				saveAudio(media, ext);
 
 			} else if (isOtherImage(mediaContentType)) {
-				String newFilePath = convertToPng(file, mediaContentType, uploadConfig.getFfmpegPath());
+				String newFilePath = convertToPng(file, mediaContentType, uploadConfig.getFfmpegPath(),
+				                                  uploadConfig.getTranscodeScheduler());
 				if (StringHelper.hasText(newFilePath)) {
-					ext = MediaConst.EXT_PNG;
 					media.setFilename(FilenameUtils.getName(newFilePath));
-					saveStaticImage(uploadDir, media, new File(newFilePath), origin, ext);
+					UploadExecutors.compute(executionMode, () -> {
+						saveStaticImage(uploadDir, media, new File(newFilePath), origin, MediaConst.EXT_PNG,
+						                uploadConfig.getDurabilityPolicy());
+						return null;
+					});
 					Files.deleteIfExists(file.toPath());
 				}
 			}
+		} catch (IOException e) {
+			if (e.getCause() instanceof TranscodeRejectedException) {
+				throw e;
+			}
+			log.error("Save media info error", e);
 		} catch (Exception e) {
 			log.error("Save media info error", e);
 		}
 	}
 
 	private static boolean isOtherImage(String mediaContentType) {
-		return mediaContentType != null && FileSupportEnum.IMAGE.getTypes().contains(mediaContentType);
+		return FileSupportEnum.IMAGE.supports(mediaContentType);
 	}
 
 	private static boolean isGifImage(String ext, String mediaContentType) {
-		return MediaConst.EXT_GIF.equalsIgnoreCase(ext)
-				|| (mediaContentType != null && FileSupportEnum.GIF_IMAGE.getTypes().contains(mediaContentType));
+		return FileSupportEnum.GIF_IMAGE.supportsExtension(ext) || FileSupportEnum.GIF_IMAGE.supports(mediaContentType);
 	}
 
 	private static boolean isStaticImage(String ext, String mediaContentType) {
-		return MediaConst.EXT_STATIC_IMAGE.contains(ext)
-				|| (mediaContentType != null
-				&& FileSupportEnum.READABLE_IMAGE.getTypes().contains(mediaContentType));
+		return FileSupportEnum.READABLE_IMAGE.supportsExtension(ext)
+				|| FileSupportEnum.READABLE_IMAGE.supports(mediaContentType);
 	}
 
 	public static void saveStaticImage(File uploadDir, MediaInfo media, File imageFile, boolean origin, String ext)
 			throws Exception {
+		saveStaticImage(uploadDir, media, imageFile, origin, ext, null);
+	}
+
+	public static void saveStaticImage(File uploadDir, MediaInfo media, File imageFile, boolean origin, String ext,
+	                                   DurabilityPolicy durabilityPolicy) throws Exception {
 		long start = System.currentTimeMillis();
-		BufferedImage buffImage;
-		// if not upload original image, must process rotate and enable
-		// progressive ...
-		if (!origin) {
-			// read and check image rotated
-			buffImage = ImageUtils.rotateImage(imageFile);
-		} else {
-			buffImage = ImageIO.read(imageFile);
-		}
+		// decode once: if not upload original image, must process rotate and enable progressive ...
+		ImagePipeline pipeline = ImagePipeline.open(imageFile, !origin, ImageUtils.THUMBNAIL_WIDTH);
 
 		// save width height
-		if (buffImage != null) {
-			media.setWidth(buffImage.getWidth());
-			media.setHeight(buffImage.getHeight());
+		if (pipeline.isDecoded()) {
+			media.setWidth(pipeline.getWidth());
+			media.setHeight(pipeline.getHeight());
+		}
+		// extract thumbnail for static images from the decoded image (default width = 500px)
+		ImagePipeline.Rendition thumbnail = null;
+		if (FileSupportEnum.READABLE_IMAGE.supportsExtension(ext)) {
+			thumbnail = pipeline.writeThumbnail(uploadDir, ext, ImageUtils.THUMBNAIL_WIDTH, 0, durabilityPolicy);
 		}
-		// extract thumbnail for static images
-		FileInputStream fileInputStream = new FileInputStream(imageFile);
-		File thumbnail = extractStaticImageThumbnail(uploadDir, fileInputStream, ext, null, null);
 
 		if (thumbnail != null) {
-			saveThumbnailMedia(media, thumbnail);
+			saveThumbnailMedia(media, thumbnail.getFile(), thumbnail.getWidth(), thumbnail.getHeight());
 		} else {
 			log.error("<<< Unable to extract thumbnail: {} >>>", imageFile.getName());
 		}
@@ -107,6 +153,17 @@ public class MediaHelperService {
 	}
 
 	public static void saveThumbnailMedia(MediaInfo media, File thumbnail) throws IOException {
+		if (MediaConst.JPEG_MINE_TYPE.equals(media.getContentType()) || thumbnail == null) {
+			return;
+		}
+		BufferedImage buffImage = ImageIO.read(thumbnail);
+		// save width height
+		saveThumbnailMedia(media, thumbnail,
+		                   buffImage != null ? buffImage.getWidth() : null,
+		                   buffImage != null ? buffImage.getHeight() : null);
+	}
+
+	public static void saveThumbnailMedia(MediaInfo media, File thumbnail, Integer width, Integer height) {
 		if (MediaConst.JPEG_MINE_TYPE.equals(media.getContentType())) {
 			return;
 		}
@@ -117,13 +174,8 @@ public class MediaHelperService {
 			thumbnailMedia.setOriginalFilename(thumbnail.getName());
 			thumbnailMedia.setFilename(thumbnail.getName());
 			thumbnailMedia.setGuid(String.format("%s%s", media.getGuid(), "thumbnail"));
-
-			BufferedImage buffImage = ImageIO.read(thumbnail);
-			// save width height
-			if (buffImage != null) {
-				thumbnailMedia.setWidth(buffImage.getWidth());
-				thumbnailMedia.setHeight(buffImage.getHeight());
-			}
+			thumbnailMedia.setWidth(width);
+			thumbnailMedia.setHeight(height);
 			media.setThumbnail(thumbnailMedia);
 		}
 	}
@@ -140,7 +192,7 @@ public class MediaHelperService {
 
 			File thumbnail = null;
 			// only extract from static images
-			if (MediaConst.EXT_STATIC_IMAGE.contains(ext)) {
+			if (FileSupportEnum.READABLE_IMAGE.supportsExtension(ext)) {
 				InputStream resizedStream = ImageUtils.resizeImage(inputStream, ext, width, height);
 				// save thumbnail image (default width = 500px)
 				thumbnail = FileUtils.saveFileOnServer(uploadDir, resizedStream, MediaConst.EXT_JPG, null);
@@ -162,34 +214,193 @@ public class MediaHelperService {
 	}
 
 	public static void saveGifImage(File uploadDir, MediaInfo media, File imageFile, String ext) throws IOException {
-		BufferedImage buffImage = ImageIO.read(imageFile);
+		saveGifImage(uploadDir, media, imageFile, ext, null);
+	}
+
+	public static void saveGifImage(File uploadDir, MediaInfo media, File imageFile, String ext,
+	                                DurabilityPolicy durabilityPolicy) throws IOException {
+		ImagePipeline pipeline = ImagePipeline.open(imageFile, false, 0);
 		// save width height
-		if (buffImage != null) {
-			media.setWidth(buffImage.getWidth());
-			media.setHeight(buffImage.getHeight());
+		if (pipeline.isDecoded()) {
+			media.setWidth(pipeline.getWidth());
+			media.setHeight(pipeline.getHeight());
+		}
+		// extract thumbnail (first frame) from the decoded image
+		ImagePipeline.Rendition thumbnail = null;
+		if (MediaConst.EXT_GIF.equalsIgnoreCase(ext)) {
+			thumbnail = pipeline.writeImage(uploadDir, MediaConst.EXT_GIF, durabilityPolicy);
 		}
-		// extract thumbnail for static images
-		FileInputStream fileInputStream = new FileInputStream(imageFile);
-		File thumbnail = extractStaticImageThumbnail(uploadDir, fileInputStream, ext, null, null);
 
 		if (thumbnail != null) {
-			saveThumbnailMedia(media, thumbnail);
+			saveThumbnailMedia(media, thumbnail.getFile(), thumbnail.getWidth(), thumbnail.getHeight());
 		} else {
 			log.error("<<< Unable to extract thumbnail: {} >>>", imageFile.getName());
 		}
 	}
 
+	/**
+	 * Fill duration and display size of audio and video from a single ffprobe call.
+	 */
+	public static void saveMediaProbe(MediaInfo media, File file, ChunkDoneConfig uploadConfig) {
+		MediaProbeResult probe = new VideoProcessor(uploadConfig.getFfmpegPath(), uploadConfig.getTranscodeScheduler())
+				.probe(file.getAbsolutePath());
+		if (probe == null) {
+			return;
+		}
+		if (probe.getDurationSeconds() != null) {
+			long duration = Math.round(probe.getDurationSeconds());
+			media.setDuration(duration);
+			media.setDurationText(DurationHelper.formatDuration(duration));
+		}
+		if (probe.hasVideo()) {
+			media.setWidth(probe.getDisplayWidth());
+			media.setHeight(probe.getDisplayHeight());
+		}
+	}
+
 	public static void saveVideo(File uploadDir, MediaInfo media, File videoFile, String ext,
 	                             ChunkDoneConfig uploadConfig) throws IOException {
 		// from now on we always convert the media to optimise the streaming speed
 		media.setProcessing(true);
 		// all video will be converted to mp4 format
 		media.setUrl(media.getFilename().replace(ext, MediaConst.EXT_MP4));
-		// can extract thumbnail from both mp4 and mov video
-		File thumbnail = extractVideoThumbnail(uploadDir, videoFile.getAbsolutePath(), uploadConfig);
+		File thumbnail = null;
+		if (uploadConfig.getPreviewFrames() > 0) {
+			thumbnail = savePreview(uploadDir, media, videoFile, uploadConfig);
+		}
+		if (thumbnail == null) {
+			// can extract thumbnail from both mp4 and mov video
+			thumbnail = extractVideoThumbnail(uploadDir, videoFile.getAbsolutePath(), uploadConfig);
+		}
 		if (thumbnail != null) {
 			saveThumbnailMedia(media, thumbnail);
 		}
+		List<TranscodeProfile> profiles = uploadConfig.getTranscodeProfiles();
+		if (uploadConfig.getStreamingFormat() != null) {
+			// the renditions are encoded with the segments, from the same decode
+			saveStreaming(uploadDir, media, videoFile, profiles, uploadConfig);
+		} else if (profiles != null && !profiles.isEmpty()) {
+			saveRenditions(uploadDir, media, videoFile, profiles, uploadConfig);
+		}
+	}
+
+	/**
+	 * Generate the sprite sheet, its WebVTT index and the poster of the video.
+	 *
+	 * @return the poster, to be used as thumbnail
+	 */
+	public static File savePreview(File uploadDir, MediaInfo media, File videoFile, ChunkDoneConfig uploadConfig) {
+		VideoProcessor processor = new VideoProcessor(uploadConfig.getFfmpegPath(),
+		                                              uploadConfig.getTranscodeScheduler());
+		VideoPreview preview = new VideoPreviewGenerator(processor)
+				.generate(videoFile.getAbsolutePath(), uploadDir, FilenameUtils.getBaseName(media.getFilename()),
+				          uploadConfig.getPreviewFrames());
+		if (preview == null) {
+			return null;
+		}
+		media.setPreview(preview);
+		return new File(uploadDir, preview.getPosterFilename());
+	}
+
+	/**
+	 * Start the segmented streaming encode and return as soon as its manifest is written, the remaining segments
+	 * are appended in the background. With transcode profiles the same run encodes their renditions, it is then
+	 * waited for until the renditions are complete.
+	 */
+	public static void saveStreaming(File uploadDir, MediaInfo media, File videoFile, List<TranscodeProfile> profiles,
+	                                 ChunkDoneConfig uploadConfig) {
+		StreamingFormat format = uploadConfig.getStreamingFormat();
+		int segmentDuration = uploadConfig.getSegmentDuration() > 0
+		                      ? uploadConfig.getSegmentDuration() : DEFAULT_SEGMENT_DURATION;
+		boolean renditions = profiles != null && !profiles.isEmpty();
+		if (!renditions) {
+			// a single variant at the source resolution
+			profiles = List.of(TranscodeProfile.builder().name("source").build());
+		}
+		VideoProcessor processor = new VideoProcessor(uploadConfig.getFfmpegPath(),
+		                                              uploadConfig.getTranscodeScheduler());
+		MediaProbeResult probe = processor.probe(videoFile.getAbsolutePath());
+		boolean hasAudio = probe != null && probe.getAudioCodec() != null;
+
+		String baseName = FilenameUtils.getBaseName(media.getFilename());
+		String streamDirName = String.format("%s_stream", baseName);
+		File streamDir = new File(uploadDir, streamDirName);
+		File manifest = VideoProcessor.getManifestFile(streamDir, format);
+		CompletableFuture<File> encode = processor.segment(videoFile.getAbsolutePath(), streamDir, profiles, format,
+		                                                   segmentDuration, hasAudio, renditions ? uploadDir : null,
+		                                                   baseName, getTranscodeTimeout(uploadConfig));
+		encode.whenComplete((file, throwable) -> {
+			if (throwable != null) {
+				log.error("Streaming output of {} failed", media.getFilename(), throwable);
+			}
+		});
+		// the manifest is written with the first segments, the renditions once the run is finished
+		CompletableFuture<File> ready = renditions ? encode : VideoProcessor.awaitManifest(manifest, encode);
+		try {
+			if (ready.get() == null) {
+				return;
+			}
+		} catch (ExecutionException e) {
+			// failures are logged when the encode completes
+			return;
+		} catch (InterruptedException e) {
+			encode.cancel(true);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		MediaManifest mediaManifest = new MediaManifest();
+		mediaManifest.setFormat(format);
+		mediaManifest.setFilename(streamDirName + "/" + manifest.getName());
+		mediaManifest.setContentType(format.getContentType());
+		mediaManifest.setSegmentDuration(segmentDuration);
+		media.setManifest(mediaManifest);
+		if (renditions) {
+			setRenditions(media, VideoProcessor.getRenditions(videoFile.getAbsolutePath(), uploadDir, baseName,
+			                                                  profiles));
+		}
+	}
+
+	/**
+	 * Encode the renditions of the configured profiles, the first one becomes the media url.
+	 */
+	public static void saveRenditions(File uploadDir, MediaInfo media, File videoFile, List<TranscodeProfile> profiles,
+	                                  ChunkDoneConfig uploadConfig) {
+		String baseName = FilenameUtils.getBaseName(media.getFilename());
+		Map<TranscodeProfile, File> files = new VideoProcessor(uploadConfig.getFfmpegPath(),
+		                                                       uploadConfig.getTranscodeScheduler())
+				.transcode(videoFile.getAbsolutePath(), uploadDir, baseName, profiles,
+				           getTranscodeTimeout(uploadConfig));
+		setRenditions(media, files);
+	}
+
+	private static long getTranscodeTimeout(ChunkDoneConfig uploadConfig) {
+		return uploadConfig.getTranscodeTimeout() > 0 ? uploadConfig.getTranscodeTimeout() :
+		       MediaProcessor.CONVERSION_TIMEOUT;
+	}
+
+	private static void setRenditions(MediaInfo media, Map<TranscodeProfile, File> files) {
+		if (files.isEmpty()) {
+			return;
+		}
+		List<MediaRendition> renditions = new ArrayList<>();
+		for (Map.Entry<TranscodeProfile, File> entry : files.entrySet()) {
+			MediaRendition rendition = new MediaRendition();
+			rendition.setName(entry.getKey().getName());
+			rendition.setFilename(entry.getValue().getName());
+			rendition.setContentType("video/mp4");
+			// the scale filter keeps the aspect ratio with an even width and never upscales
+			Integer maxHeight = entry.getKey().getMaxHeight();
+			if (media.getWidth() != null && media.getHeight() != null && media.getHeight() > 0) {
+				int height = maxHeight != null ? Math.min(maxHeight, media.getHeight()) : media.getHeight();
+				rendition.setWidth((int) Math.round((double) media.getWidth() * height / media.getHeight() / 2) * 2);
+				rendition.setHeight(height);
+			}
+			renditions.add(rendition);
+		}
+		media.setRenditions(renditions);
+		media.setUrl(renditions.get(0).getFilename());
+		// already converted
+		media.setProcessing(null);
 	}
 
 	public static File extractVideoThumbnail(File uploadDir, String filePath, ChunkDoneConfig uploadConfig) {
@@ -198,12 +409,13 @@ public class MediaHelperService {
 		String ffmpegThumbExt = uploadConfig.getFfmpegThumbExt();
 		String ffmpegStartTime = uploadConfig.getFfmpegThumbStartTime();
 
-		String baseName = FilenameUtils.getBaseName(ffmpegPath);
-		String thumbName = String.format("%s_extract%s%s", baseName, FilenameUtils.EXTENSION_SEPARATOR,
-		                                 ffmpegThumbExt);
+		// unique per upload, concurrent extractions must not share an output file
+		String thumbName = String.format("%s_extract%s%s", StringHelper.generateUniqueString(),
+		                                 FilenameUtils.EXTENSION_SEPARATOR, ffmpegThumbExt);
 		String thumbPath = new File(uploadDir, thumbName).getAbsolutePath();
 		try {
-			return new VideoProcessor(ffmpegPath).process(filePath, thumbPath, ffmpegStartTime, ffmpegThumbExt);
+			return new VideoProcessor(ffmpegPath, uploadConfig.getTranscodeScheduler())
+					.process(filePath, thumbPath, ffmpegStartTime);
 		} catch (Exception e) {
 			log.error("Can not extract video thumbnail from filePath: {}", filePath, e);
 		}
@@ -222,26 +434,28 @@ public class MediaHelperService {
 		}
 	}
 
-	public static String convertToPng(File imageFile, String contentType, String ffmpegPath) {
+	public static String convertToPng(File imageFile, String contentType, String ffmpegPath) throws IOException {
+		return convertToPng(imageFile, contentType, ffmpegPath, null);
+	}
+
+	/**
+	 * @param scheduler limits the ffmpeg processes, {@link TranscodeScheduler#getDefault()} when null
+	 * @throws IOException if the scheduler rejected the conversion
+	 */
+	public static String convertToPng(File imageFile, String contentType, String ffmpegPath,
+	                                  TranscodeScheduler scheduler) throws IOException {
 		log.info("convert image with content type {} to png", contentType);
 		String fileName = FilenameUtils.getName(imageFile.getAbsolutePath());
 		String newFilePath = imageFile.getParent() + File.separator + fileName + "." + MediaConst.EXT_PNG;
 
-		String[] args = new String[]{ffmpegPath, "-i", imageFile.getAbsolutePath(), newFilePath};
-
-		try {
-			int convertTimeout = 1; // 1 minute
-			Process p = Runtime.getRuntime().exec(args);
-			boolean status = p.waitFor(convertTimeout, TimeUnit.MINUTES);
-			if (status && new File(newFilePath).exists()) {
-				return newFilePath;
-			}
-		} catch (InterruptedException e) {
-			log.error("convert to png error: {}", e.getMessage(), e);
-			Thread.currentThread().interrupt();
-		} catch (IOException e) {
-			log.error("convert to png error: {}", e.getMessage(), e);
+		int convertTimeout = 1; // 1 minute
+		CommandResult result = new ShellCommandExecutor(ffmpegPath, "-i", imageFile.getAbsolutePath(), newFilePath)
+				.executeAndWait(Optional.ofNullable(scheduler).orElse(TranscodeScheduler.getDefault()),
+				                CommandType.ENCODE, TranscodePriority.HIGH, convertTimeout, TimeUnit.MINUTES);
+		if (result != null && !result.isTimedOut() && new File(newFilePath).exists()) {
+			return newFilePath;
 		}
+		log.error("convert to png error: {}", result != null ? result.getStderr() : null);
 		return null;
 	}
 
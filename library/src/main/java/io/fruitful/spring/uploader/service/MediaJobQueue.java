@@ -0,0 +1,327 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.dto.MediaJob;
+import io.fruitful.spring.uploader.enumeration.FileSupportEnum;
+import io.fruitful.spring.uploader.enumeration.MediaJobStatus;
+import io.fruitful.spring.uploader.exception.MediaJobRejectedException;
+import io.fruitful.spring.uploader.util.FileUtils;
+import io.fruitful.spring.uploader.util.StringHelper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs media processing (detection, thumbnails and the media process handler) for finalized uploads on a bounded
+ * worker pool. Images run before audio and video, the number of waiting jobs is bounded and every job is written
+ * to a journal file so pending jobs are picked up again after a restart. The journal is compacted down to the
+ * pending jobs on start and every {@link #COMPACTION_THRESHOLD} completed jobs.
+ */
+@Slf4j
+public class MediaJobQueue {
+
+	public static final String JOURNAL_FILE = "media-jobs.journal";
+	public static final int PRIORITY_IMAGE = 0;
+	public static final int PRIORITY_DEFAULT = 1;
+	public static final int PRIORITY_VIDEO = 2;
+	public static final int COMPACTION_THRESHOLD = 1000;
+
+	private static final String SEPARATOR = "\t";
+	private static final String EVENT_QUEUED = "QUEUED";
+	private static final String EVENT_DONE = "DONE";
+	private static final String EVENT_FAILED = "FAILED";
+
+	private final PriorityBlockingQueue<MediaJob> queue = new PriorityBlockingQueue<>(
+			16, Comparator.comparingInt(MediaJob::getPriority).thenComparingLong(MediaJob::getSequence));
+	private final AtomicLong sequence = new AtomicLong();
+	// jobs reserved or waiting in the queue
+	private final AtomicInteger pending = new AtomicInteger();
+	private final int capacity;
+	private final int workers;
+	private final ExecutorService workerPool;
+	private final Function<MediaJob, String> processor;
+	private final Consumer<MediaJob> statusHandler;
+	private final File journalFile;
+	// jobs written to the journal and not completed yet, guarded by this
+	private final Map<String, MediaJob> journaledJobs = new LinkedHashMap<>();
+	private BufferedWriter journal;
+	private int completedSinceCompaction;
+	private volatile boolean running;
+
+	/**
+	 * @param journalDir    folder holding the journal file
+	 * @param workers       number of jobs processed concurrently
+	 * @param capacity      number of jobs allowed to wait, further jobs are rejected
+	 * @param processor     processes a job and returns the media id
+	 * @param statusHandler notified on every status change, may be null
+	 */
+	public MediaJobQueue(File journalDir, int workers, int capacity, Function<MediaJob, String> processor,
+	                     Consumer<MediaJob> statusHandler) {
+		this.workers = workers;
+		this.capacity = capacity;
+		this.processor = processor;
+		this.statusHandler = statusHandler;
+		this.journalFile = new File(journalDir, JOURNAL_FILE);
+		this.workerPool = Executors.newFixedThreadPool(workers,
+		                                               Thread.ofPlatform().name("uploader-media-job-", 0).factory());
+	}
+
+	public static int getPriority(String ext) {
+		Set<FileSupportEnum> categories = FileSupportEnum.getCategoriesByExtension(ext);
+		if (categories.contains(FileSupportEnum.READABLE_IMAGE) || categories.contains(FileSupportEnum.GIF_IMAGE)) {
+			return PRIORITY_IMAGE;
+		}
+		return categories.contains(FileSupportEnum.VIDEO) ? PRIORITY_VIDEO : PRIORITY_DEFAULT;
+	}
+
+	/**
+	 * Replay the jobs left pending in the journal and start the workers.
+	 */
+	public synchronized void start() throws IOException {
+		List<MediaJob> pendingJobs = readPendingJobs();
+		for (MediaJob job : pendingJobs) {
+			journaledJobs.put(job.getJobId(), job);
+		}
+		compactJournal();
+
+		for (MediaJob job : pendingJobs) {
+			// jobs recovered from the journal are always accepted, even beyond the capacity
+			pending.incrementAndGet();
+			job.setSequence(sequence.incrementAndGet());
+			queue.add(job);
+		}
+		if (!pendingJobs.isEmpty()) {
+			log.info("Recovered {} media jobs from {}", pendingJobs.size(), journalFile.getAbsolutePath());
+		}
+
+		running = true;
+		for (int i = 0; i < workers; i++) {
+			workerPool.execute(this::work);
+		}
+	}
+
+	/**
+	 * Reserve a slot before doing expensive work for a job that will be submitted later.
+	 *
+	 * @throws MediaJobRejectedException when the queue is full
+	 */
+	public void reserve() throws MediaJobRejectedException {
+		if (pending.getAndUpdate(count -> count < capacity ? count + 1 : count) >= capacity) {
+			throw new MediaJobRejectedException("Media processing queue is full, please retry later");
+		}
+	}
+
+	/**
+	 * Give back a slot taken with {@link #reserve()} that will not be used.
+	 */
+	public void release() {
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * Queue a job for which a slot was reserved.
+	 */
+	public MediaJob submit(MediaJob job) throws IOException {
+		if (StringHelper.isEmpty(job.getJobId())) {
+			job.setJobId(StringHelper.generateUniqueString());
+		}
+		job.setSequence(sequence.incrementAndGet());
+		job.setStatus(MediaJobStatus.QUEUED);
+		journalQueued(job);
+		queue.add(job);
+		notifyStatus(job);
+		return job;
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public void shutdown() {
+		running = false;
+		workerPool.shutdownNow();
+		try {
+			if (!workerPool.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.warn("Media job workers did not stop in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				if (journal != null) {
+					journal.close();
+				}
+			} catch (IOException e) {
+				log.error("Unable to close media job journal", e);
+			}
+		}
+	}
+
+	private void work() {
+		while (running) {
+			MediaJob job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			pending.decrementAndGet();
+			run(job);
+		}
+	}
+
+	private void run(MediaJob job) {
+		long start = System.currentTimeMillis();
+		job.setStatus(MediaJobStatus.RUNNING);
+		notifyStatus(job);
+		String event;
+		try {
+			job.setMediaId(processor.apply(job));
+			job.setStatus(MediaJobStatus.DONE);
+			event = EVENT_DONE;
+		} catch (Exception e) {
+			log.error("Media job {} failed", job.getJobId(), e);
+			job.setError(e.getMessage());
+			job.setStatus(MediaJobStatus.FAILED);
+			event = EVENT_FAILED;
+		}
+		try {
+			journalCompleted(event, job);
+		} catch (IOException e) {
+			log.error("Unable to journal media job {}", job.getJobId(), e);
+		}
+		notifyStatus(job);
+		log.info("Media job {} {} in {} ms", job.getJobId(), job.getStatus(), System.currentTimeMillis() - start);
+	}
+
+	private void notifyStatus(MediaJob job) {
+		if (statusHandler == null) {
+			return;
+		}
+		try {
+			statusHandler.accept(job);
+		} catch (Exception e) {
+			log.error("Media job status handler failed for job {}", job.getJobId(), e);
+		}
+	}
+
+	private synchronized void journalQueued(MediaJob job) throws IOException {
+		appendToJournal(formatQueued(job));
+		journaledJobs.put(job.getJobId(), job);
+	}
+
+	private synchronized void journalCompleted(String event, MediaJob job) throws IOException {
+		journaledJobs.remove(job.getJobId());
+		appendToJournal(event + SEPARATOR + encode(job.getJobId()));
+		if (++completedSinceCompaction >= COMPACTION_THRESHOLD) {
+			compactJournal();
+		}
+	}
+
+	private void appendToJournal(String line) throws IOException {
+		journal.write(line);
+		journal.newLine();
+		journal.flush();
+	}
+
+	/**
+	 * Rewrite the journal with only the jobs that still have to run. Must be called holding the lock on this.
+	 */
+	private void compactJournal() throws IOException {
+		File compacted = new File(journalFile.getParentFile(), JOURNAL_FILE + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(compacted.toPath(), StandardCharsets.UTF_8)) {
+			for (MediaJob job : journaledJobs.values()) {
+				writer.write(formatQueued(job));
+				writer.newLine();
+			}
+		}
+		if (journal != null) {
+			journal.close();
+		}
+		try {
+			FileUtils.move(compacted, journalFile);
+		} finally {
+			// keep appending to the old journal when the compacted one could not replace it
+			journal = Files.newBufferedWriter(journalFile.toPath(), StandardCharsets.UTF_8,
+			                                  StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		completedSinceCompaction = 0;
+	}
+
+	private List<MediaJob> readPendingJobs() throws IOException {
+		Map<String, MediaJob> pendingJobs = new LinkedHashMap<>();
+		if (!journalFile.exists()) {
+			return new ArrayList<>();
+		}
+		for (String line : Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split(SEPARATOR, -1);
+			if (EVENT_QUEUED.equals(fields[0]) && fields.length >= 10) {
+				MediaJob job = parseQueued(fields);
+				pendingJobs.put(job.getJobId(), job);
+			} else if (fields.length >= 2) {
+				pendingJobs.remove(decode(fields[1]));
+			}
+		}
+		List<MediaJob> jobs = new ArrayList<>();
+		for (MediaJob job : pendingJobs.values()) {
+			if (new File(job.getFilePath()).exists()) {
+				jobs.add(job);
+			} else {
+				log.warn("Dropping media job {}, file {} no longer exists", job.getJobId(), job.getFilePath());
+			}
+		}
+		return jobs;
+	}
+
+	private static String formatQueued(MediaJob job) {
+		return String.join(SEPARATOR, EVENT_QUEUED, encode(job.getJobId()), String.valueOf(job.getPriority()),
+		                   encode(job.getGuid()), String.valueOf(job.isOriginal()), encode(job.getFilePath()),
+		                   encode(job.getOriginalFilename()), encode(job.getExt()), encode(job.getContentType()),
+		                   encode(job.getChecksum()));
+	}
+
+	private static MediaJob parseQueued(String[] fields) {
+		MediaJob job = new MediaJob();
+		job.setJobId(decode(fields[1]));
+		job.setPriority(Integer.parseInt(fields[2]));
+		job.setGuid(decode(fields[3]));
+		job.setOriginal(Boolean.parseBoolean(fields[4]));
+		job.setFilePath(decode(fields[5]));
+		job.setOriginalFilename(decode(fields[6]));
+		job.setExt(decode(fields[7]));
+		job.setContentType(decode(fields[8]));
+		job.setChecksum(decode(fields[9]));
+		job.setStatus(MediaJobStatus.QUEUED);
+		return job;
+	}
+
+	private static String encode(String value) {
+		return value == null ? "" : URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+
+	private static String decode(String value) {
+		return StringHelper.isEmpty(value) ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,138 @@
+package io.fruitful.spring.uploader.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.fruitful.spring.uploader.dto.MediaProbeResult;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.util.NumberHelper;
+import io.fruitful.spring.uploader.util.StringHelper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the format and stream info of a media file with a single ffprobe call. Results are cached per file path
+ * and modification time, so probing the same file for its duration, rotation and size forks one process.
+ */
+@Slf4j
+public class MediaProbe {
+
+	public static final int CACHE_SIZE = 256;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final Map<String, MediaProbeResult> CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, MediaProbeResult> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private final String ffprobePath;
+	private final TranscodeScheduler scheduler;
+
+	public MediaProbe(String ffprobePath, TranscodeScheduler scheduler) {
+		this.ffprobePath = ffprobePath;
+		this.scheduler = scheduler != null ? scheduler : TranscodeScheduler.getDefault();
+	}
+
+	/**
+	 * @return the probe result, null if ffprobe failed or the file is not a media file
+	 */
+	public MediaProbeResult probe(String filePath) {
+		File file = new File(filePath);
+		String key = String.format("%s:%d:%d", file.getAbsolutePath(), file.lastModified(), file.length());
+		MediaProbeResult cached = CACHE.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		String output;
+		try {
+			output = new ShellCommandExecutor(ffprobePath, "-v", "error", "-print_format", "json", "-show_format",
+			                                  "-show_streams", filePath)
+					.execute(scheduler, CommandType.PROBE, TranscodePriority.NORMAL,
+					         MediaProcessor.PROBE_TIMEOUT);
+		} catch (IOException e) {
+			log.warn("Probe of {} rejected: {}", filePath, e.getMessage());
+			return null;
+		}
+		if (StringHelper.isEmpty(output)) {
+			log.warn("No probe result for {}", filePath);
+			return null;
+		}
+		try {
+			MediaProbeResult result = parse(MAPPER.readTree(output));
+			CACHE.put(key, result);
+			return result;
+		} catch (IOException e) {
+			log.error("Unable to parse probe result of {}", filePath, e);
+			return null;
+		}
+	}
+
+	private static MediaProbeResult parse(JsonNode root) {
+		MediaProbeResult result = new MediaProbeResult();
+		JsonNode format = root.path("format");
+		result.setFormatName(text(format, "format_name"));
+		// numbers are reported as strings in the format section
+		result.setDurationSeconds(format.hasNonNull("duration") ? format.get("duration").asDouble() : null);
+		result.setBitRate(format.hasNonNull("bit_rate") ? format.get("bit_rate").asLong() : null);
+
+		for (JsonNode stream : root.path("streams")) {
+			String codecType = text(stream, "codec_type");
+			// cover art of audio files is reported as a video stream
+			boolean attachedPicture = stream.path("disposition").path("attached_pic").asInt() == 1;
+			if ("video".equals(codecType) && !attachedPicture && result.getVideoCodec() == null) {
+				result.setVideoCodec(text(stream, "codec_name"));
+				result.setWidth(stream.hasNonNull("width") ? stream.get("width").asInt() : null);
+				result.setHeight(stream.hasNonNull("height") ? stream.get("height").asInt() : null);
+				result.setRotation(parseRotation(stream));
+				result.setFrameRate(parseFrameRate(text(stream, "avg_frame_rate")));
+				if (result.getFrameRate() == null) {
+					result.setFrameRate(parseFrameRate(text(stream, "r_frame_rate")));
+				}
+			} else if ("audio".equals(codecType) && result.getAudioCodec() == null) {
+				result.setAudioCodec(text(stream, "codec_name"));
+			}
+		}
+		return result;
+	}
+
+	private static int parseRotation(JsonNode stream) {
+		// older ffmpeg reports the rotate tag (clockwise), newer the display matrix side data (counterclockwise)
+		JsonNode tags = stream.path("tags");
+		int rotation = 0;
+		if (tags.hasNonNull("rotate")) {
+			rotation = tags.get("rotate").asInt();
+		} else {
+			for (JsonNode sideData : stream.path("side_data_list")) {
+				if (sideData.has("rotation")) {
+					rotation = -sideData.get("rotation").asInt();
+				}
+			}
+		}
+		return ((rotation % 360) + 360) % 360;
+	}
+
+	private static Double parseFrameRate(String frameRate) {
+		// sample: 30000/1001
+		if (StringHelper.isEmpty(frameRate)) {
+			return null;
+		}
+		String[] parts = frameRate.split("/");
+		double numerator = NumberHelper.parseDouble(parts[0]);
+		double denominator = parts.length > 1 ? NumberHelper.parseDouble(parts[1]) : 1;
+		return numerator > 0 && denominator > 0 ? numerator / denominator : null;
+	}
+
+	private static String text(JsonNode node, String field) {
+		JsonNode value = node.get(field);
+		return value == null || value.isNull() ? null : value.asText();
+	}
+}
@@ -1,6 +1,7 @@
 package io.fruitful.spring.uploader.service;
 
-import io.fruitful.spring.uploader.util.StringHelper;
+import io.fruitful.spring.uploader.dto.MediaProbeResult;
+import io.fruitful.spring.uploader.util.DurationHelper;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
@@ -9,25 +10,47 @@ import java.io.File;
 public abstract class MediaProcessor {
 
 	public static final long CONVERSION_TIMEOUT = 10; // MAX 10 minutes
+	// minutes a probe may run, it only reads the container and stream headers
+	public static final long PROBE_TIMEOUT = 1;
+	// minutes the extraction or overlay of a single frame may run
+	public static final long FRAME_TIMEOUT = 2;
 
 	protected String ffmpegPath;
 	protected String ffprobePath;
+	protected TranscodeScheduler scheduler;
 
 	protected MediaProcessor(String ffmpegPath) {
+		this(ffmpegPath, null);
+	}
+
+	/**
+	 * @param scheduler limits the ffmpeg and ffprobe processes, {@link TranscodeScheduler#getDefault()} when null
+	 */
+	protected MediaProcessor(String ffmpegPath, TranscodeScheduler scheduler) {
 		this.ffmpegPath = ffmpegPath;
 		ffprobePath = this.ffmpegPath.replace("ffmpeg", "ffprobe");
+		this.scheduler = scheduler != null ? scheduler : TranscodeScheduler.getDefault();
 	}
 
 	public abstract File process(String input, String output);
 
+	/**
+	 * Format, streams, duration, size and rotation of the media from one cached ffprobe call.
+	 *
+	 * @return null if the media could not be probed
+	 */
+	public MediaProbeResult probe(String media) {
+		return new MediaProbe(ffprobePath, scheduler).probe(media);
+	}
+
 	public String detectDuration(String media) {
 		try {
-			String result = new ShellCommandExecutor(ffprobePath, "-v", "error", "-show_entries", "format=duration",
-			                                         "-of", "default=noprint_wrappers=1", media,
-			                                         "-sexagesimal").execute(CONVERSION_TIMEOUT);
-			log.debug(result);
-			// result sample: duration=0:00:59.400000
-			String duration = StringHelper.trimToEmpty(StringHelper.substringAfter(result, "="));
+			MediaProbeResult result = probe(media);
+			if (result == null || result.getDurationSeconds() == null) {
+				return null;
+			}
+			// result sample: 0:00:59.400000
+			String duration = DurationHelper.formatSexagesimal(result.getDurationSeconds(), 1, 6);
 			log.debug(duration);
 			return duration;
 
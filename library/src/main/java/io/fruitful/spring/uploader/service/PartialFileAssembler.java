@@ -0,0 +1,255 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.dto.RequestParser;
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
+import io.fruitful.spring.uploader.util.BufferPool;
+import io.fruitful.spring.uploader.util.ChecksumHelper;
+import io.fruitful.spring.uploader.util.FileUtils;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Assembles chunked uploads in place: every chunk is written at its byte offset into one preallocated
+ * {@code <uuid>.partial} file and recorded in a {@code <uuid>.parts} bitmap, so finishing an upload is a bitmap
+ * check and a rename instead of a concatenation of part files.
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class PartialFileAssembler {
+
+	public static final String PARTIAL_EXTENSION = "partial";
+	public static final String BITMAP_EXTENSION = "parts";
+
+	// guards preallocation and the read-modify-write of bitmap bytes shared by neighbouring parts
+	private static final UploadLockRegistry LOCKS = new UploadLockRegistry();
+
+	public static File getPartialFile(File dir, String uuid) {
+		return new File(dir, uuid + FileUtils.EXTENSION_SEPARATOR + PARTIAL_EXTENSION);
+	}
+
+	public static File getBitmapFile(File dir, String uuid) {
+		return new File(dir, uuid + FileUtils.EXTENSION_SEPARATOR + BITMAP_EXTENSION);
+	}
+
+	/**
+	 * Write one chunk at its offset in the partial file and mark it as received.
+	 */
+	public static long writePart(File dir, RequestParser request, InputStream in, Long expectedFileSize)
+			throws IOException {
+		return writePart(dir, request, in, expectedFileSize, null);
+	}
+
+	/**
+	 * Write one chunk at its offset in the partial file and mark it as received, the chunk is synced under
+	 * {@link DurabilityPolicy#ALWAYS}.
+	 *
+	 * @return the number of bytes written
+	 */
+	public static long writePart(File dir, RequestParser request, InputStream in, Long expectedFileSize,
+	                             DurabilityPolicy durabilityPolicy) throws IOException {
+		long offset = prepare(dir, request);
+		long maxLength = getMaxPartLength(request, offset, expectedFileSize);
+		long written;
+		CheckedInputStream checkedIn = new CheckedInputStream(in, new CRC32C());
+		try (FileChannel channel = FileChannel.open(getPartialFile(dir, request.getUuid()).toPath(),
+		                                            StandardOpenOption.WRITE)) {
+			written = writeAt(checkedIn, channel, offset, maxLength);
+			if (durabilityPolicy == DurabilityPolicy.ALWAYS) {
+				channel.force(false);
+			}
+		}
+		completePart(dir, request, expectedFileSize, offset, written, checkedIn.getChecksum().getValue());
+		return written;
+	}
+
+	/**
+	 * Validate a chunk written at the given offset, mark it as received and record it in the chunk manifest.
+	 *
+	 * @param checksum CRC32C of the chunk content
+	 */
+	public static void completePart(File dir, RequestParser request, Long expectedFileSize, long offset, long written,
+	                                long checksum) throws IOException {
+		assertPartIndex(request);
+		if (offset < 0 || offset + written > request.getTotalFileSize()) {
+			throw new IOException(String.format("Part %d overflows the file, %d bytes written at offset %d of %d",
+			                                    request.getPartIndex(), written, offset,
+			                                    request.getTotalFileSize()));
+		}
+		assertPartSize(request, expectedFileSize, written);
+		ChecksumHelper.assertChunkChecksum(request.getChunkChecksum(), checksum);
+		markWritten(dir, request.getUuid(), request.getPartIndex());
+		ChunkManifest.recordPart(dir, request, written, checksum);
+	}
+
+	/**
+	 * Preallocate the partial file and its bitmap on the first chunk of an upload.
+	 *
+	 * @return the byte offset the chunk must be written at
+	 */
+	public static long prepare(File dir, RequestParser request) throws IOException {
+		long offset = getPartOffset(request);
+		String uuid = request.getUuid();
+		try (UploadLockRegistry.Handle ignored = LOCKS.lock(uuid)) {
+			File partialFile = getPartialFile(dir, uuid);
+			if (!partialFile.exists()) {
+				try (RandomAccessFile partial = new RandomAccessFile(partialFile, "rw");
+				     RandomAccessFile bitmap = new RandomAccessFile(getBitmapFile(dir, uuid), "rw")) {
+					partial.setLength(request.getTotalFileSize());
+					bitmap.setLength((request.getTotalParts() + 7) / 8);
+				}
+				log.info("File UUID {} preallocated {} bytes for {} parts", uuid, request.getTotalFileSize(),
+				         request.getTotalParts());
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Number of bytes a chunk may write at its offset: its declared size, or what is left of the file. Parts of
+	 * the same upload share the partial file, a longer chunk would overwrite its neighbours.
+	 *
+	 * @param expectedFileSize length of the chunk as sent, may be null
+	 */
+	public static long getMaxPartLength(RequestParser request, long offset, Long expectedFileSize)
+			throws IOException {
+		long remaining = request.getTotalFileSize() - offset;
+		Long expected = request.getChunkSize() != null ? request.getChunkSize() : expectedFileSize;
+		if (expected == null) {
+			return remaining;
+		}
+		if (expected > remaining) {
+			throw new IOException(String.format("Part %d overflows the file, %d bytes at offset %d of %d",
+			                                    request.getPartIndex(), expected, offset,
+			                                    request.getTotalFileSize()));
+		}
+		return expected;
+	}
+
+	/**
+	 * Copy the stream into the channel with positional writes starting at the given offset, failing before
+	 * anything past the maximum length is written.
+	 *
+	 * @return the number of bytes written
+	 */
+	public static long writeAt(InputStream in, FileChannel channel, long offset, long maxLength) throws IOException {
+		long position = offset;
+		try (BufferPool.Lease lease = FileUtils.STREAM_BUFFERS.acquire()) {
+			ByteBuffer byteBuffer = lease.buffer();
+			int count;
+			while ((count = in.read(lease.array())) != -1) {
+				assertWithinPart(position - offset + count, maxLength);
+				byteBuffer.clear().limit(count);
+				while (byteBuffer.hasRemaining()) {
+					position += channel.write(byteBuffer, position);
+				}
+			}
+		}
+		return position - offset;
+	}
+
+	/**
+	 * @param length bytes of the chunk received so far
+	 */
+	public static void assertWithinPart(long length, long maxLength) throws IOException {
+		if (length > maxLength) {
+			throw new IOException(String.format("Part is longer than its %d bytes", maxLength));
+		}
+	}
+
+	public static void assertPartSize(RequestParser request, Long expectedFileSize, long written) throws IOException {
+		Long expected = request.getChunkSize() != null ? request.getChunkSize() : expectedFileSize;
+		if (expected != null && expected != written) {
+			throw new IOException(String.format("Unexpected part size mismatch. Actual bytes %s. Expected bytes %s.",
+			                                    written, expected));
+		}
+	}
+
+	public static void markWritten(File dir, String uuid, int partIndex) throws IOException {
+		try (UploadLockRegistry.Handle ignored = LOCKS.lock(uuid);
+		     FileChannel bitmap = FileChannel.open(getBitmapFile(dir, uuid).toPath(), StandardOpenOption.READ,
+		                                           StandardOpenOption.WRITE)) {
+			ByteBuffer value = ByteBuffer.allocate(1);
+			bitmap.read(value, partIndex / 8);
+			value.put(0, (byte) (value.get(0) | (1 << (partIndex % 8))));
+			value.rewind();
+			bitmap.write(value, partIndex / 8);
+		}
+	}
+
+	public static boolean isComplete(File dir, String uuid, int totalParts) throws IOException {
+		File bitmapFile = getBitmapFile(dir, uuid);
+		if (totalParts <= 0 || !bitmapFile.exists()) {
+			return false;
+		}
+		byte[] bitmap;
+		try (UploadLockRegistry.Handle ignored = LOCKS.lock(uuid)) {
+			bitmap = Files.readAllBytes(bitmapFile.toPath());
+		}
+		if (bitmap.length < (totalParts + 7) / 8) {
+			return false;
+		}
+		for (int partIndex = 0; partIndex < totalParts; partIndex++) {
+			if ((bitmap[partIndex / 8] & (1 << (partIndex % 8))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rename the completed partial file to the output name. The bitmap goes with the upload folder, until then the
+	 * output can be moved back to the partial file and completed again.
+	 */
+	public static File complete(File dir, String uuid, String outputFileName) throws IOException {
+		File outputFile = new File(dir, outputFileName);
+		FileUtils.move(getPartialFile(dir, uuid), outputFile);
+		return outputFile;
+	}
+
+	/**
+	 * @throws IOException if the part index is outside the parts of the upload, it must never reach the bitmap
+	 */
+	public static void assertPartIndex(RequestParser request) throws IOException {
+		if (request.getPartIndex() < 0 || request.getPartIndex() >= request.getTotalParts()) {
+			throw new IOException(String.format("Part index %d is out of range, the file has %d parts",
+			                                    request.getPartIndex(), request.getTotalParts()));
+		}
+	}
+
+	private static long getPartOffset(RequestParser request) throws IOException {
+		assertPartIndex(request);
+		long offset;
+		Long chunkSize = request.getChunkSize();
+		if (request.getPartByteOffset() != null) {
+			offset = request.getPartByteOffset();
+		} else if (chunkSize == null) {
+			throw new IOException("Part offset is unknown, qqpartbyteoffset or qqchunksize is required");
+		} else if (chunkSize < 0) {
+			throw new IOException(String.format("Chunk size %d of part %d is negative", chunkSize,
+			                                    request.getPartIndex()));
+		} else if (request.getPartIndex() == request.getTotalParts() - 1) {
+			// the last chunk is usually shorter than the others, it ends where the file ends
+			offset = request.getTotalFileSize() - chunkSize;
+		} else {
+			offset = request.getPartIndex() * chunkSize;
+		}
+		// no chunk starts before the file or past its end, its length is bounded by getMaxPartLength
+		if (offset < 0 || offset > request.getTotalFileSize()) {
+			throw new IOException(String.format("Part %d offset %d is outside the file of %d bytes",
+			                                    request.getPartIndex(), offset, request.getTotalFileSize()));
+		}
+		return offset;
+	}
+}
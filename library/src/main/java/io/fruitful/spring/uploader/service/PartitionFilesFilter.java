@@ -5,14 +5,15 @@ import java.io.FilenameFilter;
 import java.util.regex.Pattern;
 
 public class PartitionFilesFilter implements FilenameFilter {
-	private final String filename;
+	// compiled once per listing instead of once per directory entry
+	private final Pattern pattern;
 
 	public PartitionFilesFilter(String filename) {
-		this.filename = filename;
+		this.pattern = Pattern.compile(Pattern.quote(filename) + "_\\d+");
 	}
 
 	@Override
 	public boolean accept(File file, String s) {
-		return s.matches(Pattern.quote(filename) + "_\\d+");
+		return pattern.matcher(s).matches();
 	}
 }
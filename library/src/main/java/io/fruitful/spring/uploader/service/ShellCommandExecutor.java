@@ -1,18 +1,30 @@
 package io.fruitful.spring.uploader.service;
 
+import io.fruitful.spring.uploader.dto.CommandResult;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.exception.TranscodeRejectedException;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class ShellCommandExecutor {
 
+	// characters kept per stream, the rest is read and dropped so the process never blocks on a full pipe
+	public static final int MAX_OUTPUT_SIZE = 64 * 1024;
+
 	private final ProcessBuilder builder;
 
 	public ShellCommandExecutor(String app, String... arguments) {
@@ -32,30 +44,158 @@ public class ShellCommandExecutor {
 		return this.execute(timeout, TimeUnit.MINUTES);
 	}
 
+	/**
+	 * Run the command and wait for it.
+	 *
+	 * @return the standard output without line breaks, empty if the command failed to start or timed out
+	 */
 	public String execute(long timeout, TimeUnit timeunit) {
-		StringBuilder output = new StringBuilder();
-		Process process = null;
+		return toOutput(executeAndWait(timeout, timeunit));
+	}
+
+	/**
+	 * Run the command once the scheduler has a free slot of the given type and wait for it.
+	 *
+	 * @param timeout minutes the command may run, the wait for a slot ends at the scheduler's deadline
+	 * @return the standard output without line breaks, empty if the command failed to start or timed out
+	 * @throws IOException if the scheduler rejected the command or it could not start before its deadline, the host
+	 *                     is overloaded and the caller should retry
+	 */
+	public String execute(TranscodeScheduler scheduler, CommandType type, TranscodePriority priority, long timeout)
+			throws IOException {
+		return toOutput(executeAndWait(scheduler, type, priority, timeout, TimeUnit.MINUTES));
+	}
 
+	/**
+	 * Run the command and wait for it.
+	 *
+	 * @return the result, null if the command failed to start or the wait was interrupted
+	 */
+	public CommandResult executeAndWait(long timeout, TimeUnit timeunit) {
+		try {
+			return await(executeAsync(timeout, timeunit));
+		} catch (IOException e) {
+			// only commands queued on a scheduler are rejected
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Run the command once the scheduler has a free slot of the given type and wait for it.
+	 *
+	 * @return the result, null if the command failed to start or the wait was interrupted
+	 * @throws IOException if the scheduler rejected the command, the host is overloaded and the caller should retry
+	 */
+	public CommandResult executeAndWait(TranscodeScheduler scheduler, CommandType type, TranscodePriority priority,
+	                                    long timeout, TimeUnit timeunit) throws IOException {
+		return await(executeAsync(scheduler, type, priority, timeout, timeunit));
+	}
+
+	/**
+	 * Queue the command on the scheduler, it is started once a slot of the given type is free.
+	 */
+	public CompletableFuture<CommandResult> executeAsync(TranscodeScheduler scheduler, CommandType type,
+	                                                     TranscodePriority priority, long timeout,
+	                                                     TimeUnit timeunit) {
+		return scheduler.submit(type, priority, () -> executeAsync(timeout, timeunit));
+	}
+
+	/**
+	 * Start the command without blocking. Standard output and error are drained concurrently into bounded buffers
+	 * and the whole process tree is killed if it runs longer than the timeout. Cancelling the future kills it too.
+	 */
+	public CompletableFuture<CommandResult> executeAsync(long timeout, TimeUnit timeunit) {
+		long start = System.currentTimeMillis();
+		Process process;
 		try {
 			log.info("Prepare to execute command: {}", String.join(" ", builder.command()));
 			process = builder.start();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
 
-			boolean status = process.waitFor(timeout, timeunit);
-			if (status) {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-				String line;
-				while ((line = reader.readLine()) != null) {
-					output.append(line);
-				}
+		CommandResult result = new CommandResult();
+		CompletableFuture<String> stdout = drain(process.getInputStream(), result);
+		CompletableFuture<String> stderr = drain(process.getErrorStream(), result);
+		CompletableFuture<CommandResult> future = process
+				.onExit()
+				.completeOnTimeout(null, timeout, timeunit)
+				.thenCompose(exited -> {
+					if (exited == null) {
+						log.warn("Command timed out after {} {}: {}", timeout, timeunit, builder.command().get(0));
+						result.setTimedOut(true);
+						destroyTree(process);
+					}
+					// the pipes are closed once the process tree is gone
+					return CompletableFuture.allOf(stdout, stderr);
+				})
+				.thenApply(ignored -> {
+					if (!result.isTimedOut()) {
+						result.setExitCode(process.exitValue());
+					}
+					result.setStdout(stdout.join());
+					result.setStderr(stderr.join());
+					result.setDurationMillis(System.currentTimeMillis() - start);
+					if (!result.isTimedOut() && result.getExitCode() != 0) {
+						log.warn("Command {} exited with {}: {}", builder.command().get(0), result.getExitCode(),
+						         result.getStderr());
+					}
+					return result;
+				});
+		future.whenComplete((value, throwable) -> {
+			if (future.isCancelled()) {
+				destroyTree(process);
 			}
-		} catch (IOException | InterruptedException e) {
-			log.error(e.getMessage(), e);
+		});
+		return future;
+	}
+
+	private static CommandResult await(CompletableFuture<CommandResult> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
 			Thread.currentThread().interrupt();
-		} finally {
-			if (process != null) {
-				process.destroy();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TranscodeRejectedException rejection) {
+				// not a failed command: missing output would be taken for a broken input
+				throw new IOException(rejection.getMessage(), rejection);
 			}
+			log.error(e.getCause().getMessage(), e.getCause());
+		}
+		return null;
+	}
+
+	private static String toOutput(CommandResult result) {
+		if (result == null || result.isTimedOut()) {
+			return "";
 		}
-		return output.toString();
+		return result.getStdout().replaceAll("\r?\n", "");
+	}
+
+	private static void destroyTree(Process process) {
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		process.destroyForcibly();
+	}
+
+	private static CompletableFuture<String> drain(InputStream stream, CommandResult result) {
+		return CompletableFuture.supplyAsync(() -> {
+			StringBuilder output = new StringBuilder();
+			char[] buffer = new char[4096];
+			try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+				int count;
+				while ((count = reader.read(buffer)) != -1) {
+					int kept = Math.min(count, MAX_OUTPUT_SIZE - output.length());
+					if (kept < count) {
+						result.setTruncated(true);
+					}
+					output.append(buffer, 0, kept);
+				}
+			} catch (IOException e) {
+				// stream closed when the process is destroyed
+				log.debug("Stop reading command output: {}", e.getMessage());
+			}
+			return output.toString();
+		}, UploadExecutors.getBlockingExecutor());
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.dto.TranscodeMetrics;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.exception.TranscodeRejectedException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of external processes (ffmpeg, ffprobe) running at the same time, with separate limits for
+ * encodes and probes. Work beyond the limit waits in a bounded priority queue, is dropped when its deadline passes
+ * before it could start and is rejected when the queue is full. Nothing blocks while waiting: a queued job is
+ * started by the completion of a running one.
+ */
+@Slf4j
+public class TranscodeScheduler {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 100;
+	public static final long DEFAULT_MAX_WAIT = TimeUnit.MINUTES.toMillis(MediaProcessor.CONVERSION_TIMEOUT);
+
+	private static final TranscodeScheduler DEFAULT = new TranscodeScheduler(
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2), Runtime.getRuntime().availableProcessors(),
+			DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_WAIT);
+
+	private final Map<CommandType, Lane> lanes = new EnumMap<>(CommandType.class);
+	private final AtomicLong sequence = new AtomicLong();
+	private final long maxWaitMillis;
+
+	/**
+	 * @param maxEncodes    number of encodes running at the same time
+	 * @param maxProbes     number of probes running at the same time
+	 * @param queueCapacity number of jobs allowed to wait per type, further jobs are rejected
+	 * @param maxWaitMillis default deadline of a queued job, relative to its submission
+	 */
+	public TranscodeScheduler(int maxEncodes, int maxProbes, int queueCapacity, long maxWaitMillis) {
+		lanes.put(CommandType.ENCODE, new Lane(CommandType.ENCODE, maxEncodes, queueCapacity));
+		lanes.put(CommandType.PROBE, new Lane(CommandType.PROBE, maxProbes, queueCapacity));
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Scheduler shared by every processor that is not given its own, half the cores for encodes and one probe per
+	 * core.
+	 */
+	public static TranscodeScheduler getDefault() {
+		return DEFAULT;
+	}
+
+	public <T> CompletableFuture<T> submit(CommandType type, TranscodePriority priority,
+	                                       Supplier<CompletableFuture<T>> task) {
+		return submit(type, priority, System.currentTimeMillis() + maxWaitMillis, task);
+	}
+
+	/**
+	 * Start the task once a slot of its type is free.
+	 *
+	 * @param priority {@link TranscodePriority#HIGH} runs first
+	 * @param deadline epoch millis the task must have started by, it fails with a
+	 *                 {@link TranscodeRejectedException} otherwise
+	 * @param task     starts the work and returns its completion
+	 */
+	public <T> CompletableFuture<T> submit(CommandType type, TranscodePriority priority, long deadline,
+	                                       Supplier<CompletableFuture<T>> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Job<T> job = new Job<>(priority, sequence.incrementAndGet(), deadline, task, result);
+		lanes.get(type).offer(job);
+		return result;
+	}
+
+	public TranscodeMetrics getMetrics(CommandType type) {
+		return lanes.get(type).metrics();
+	}
+
+	private static final class Lane {
+		private final CommandType type;
+		private final int limit;
+		private final int capacity;
+		private final PriorityQueue<Job<?>> queue = new PriorityQueue<>(
+				Comparator.<Job<?>>comparingInt(job -> job.priority.ordinal()).thenComparingLong(job -> job.sequence));
+		private final TranscodeMetrics metrics = new TranscodeMetrics();
+		private int running;
+
+		private Lane(CommandType type, int limit, int capacity) {
+			this.type = type;
+			this.limit = Math.max(1, limit);
+			this.capacity = capacity;
+			metrics.setType(type);
+			metrics.setLimit(this.limit);
+		}
+
+		private void offer(Job<?> job) {
+			synchronized (this) {
+				metrics.setSubmitted(metrics.getSubmitted() + 1);
+				if (running >= limit) {
+					if (queue.size() >= capacity) {
+						metrics.setRejected(metrics.getRejected() + 1);
+						job.result.completeExceptionally(new TranscodeRejectedException(String.format(
+								"Too many %s jobs waiting (%d), please retry later", type, queue.size())));
+						return;
+					}
+					queue.add(job);
+					if (job.deadline > 0) {
+						// dropped at its deadline even when no running job completes by then
+						CompletableFuture.delayedExecutor(Math.max(0, job.deadline - System.currentTimeMillis()) + 1,
+						                                  TimeUnit.MILLISECONDS).execute(() -> expire(job));
+					}
+					return;
+				}
+				running++;
+			}
+			start(job);
+		}
+
+		private void expire(Job<?> job) {
+			synchronized (this) {
+				if (!queue.remove(job) || job.result.isDone()) {
+					// started or cancelled meanwhile
+					return;
+				}
+				metrics.setExpired(metrics.getExpired() + 1);
+			}
+			log.warn("{} job dropped, it could not start within {} ms", type, job.deadline - job.submitted);
+			job.result.completeExceptionally(rejectExpired());
+		}
+
+		private TranscodeRejectedException rejectExpired() {
+			return new TranscodeRejectedException(String.format("%s job could not start before its deadline", type));
+		}
+
+		private <T> void start(Job<T> job) {
+			long startTime = System.currentTimeMillis();
+			recordWait(startTime - job.submitted);
+			CompletableFuture<T> work = run(job.task);
+			// cancelling the caller's future stops the work
+			job.result.whenComplete((value, throwable) -> {
+				if (job.result.isCancelled()) {
+					work.cancel(true);
+				}
+			});
+			work.whenComplete((value, throwable) -> {
+				recordRun(System.currentTimeMillis() - startTime);
+				if (throwable != null) {
+					job.result.completeExceptionally(throwable);
+				} else {
+					job.result.complete(value);
+				}
+				startNext();
+			});
+		}
+
+		private static <T> CompletableFuture<T> run(Supplier<CompletableFuture<T>> task) {
+			try {
+				return task.get();
+			} catch (Exception e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+
+		private void startNext() {
+			Job<?> next;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				while ((next = queue.poll()) != null && (next.result.isDone() || next.isExpired(now))) {
+					if (next.result.isDone()) {
+						// cancelled while waiting
+						continue;
+					}
+					metrics.setExpired(metrics.getExpired() + 1);
+					log.warn("{} job dropped, waited {} ms past its deadline", type, now - next.deadline);
+					next.result.completeExceptionally(rejectExpired());
+				}
+				if (next == null) {
+					running--;
+					return;
+				}
+			}
+			start(next);
+		}
+
+		private synchronized void recordWait(long waitMillis) {
+			metrics.setTotalWaitMillis(metrics.getTotalWaitMillis() + waitMillis);
+			metrics.setMaxWaitMillis(Math.max(metrics.getMaxWaitMillis(), waitMillis));
+		}
+
+		private synchronized void recordRun(long runMillis) {
+			metrics.setCompleted(metrics.getCompleted() + 1);
+			metrics.setTotalRunMillis(metrics.getTotalRunMillis() + runMillis);
+			metrics.setMaxRunMillis(Math.max(metrics.getMaxRunMillis(), runMillis));
+		}
+
+		private synchronized TranscodeMetrics metrics() {
+			TranscodeMetrics snapshot = new TranscodeMetrics();
+			snapshot.setType(type);
+			snapshot.setLimit(limit);
+			snapshot.setRunning(running);
+			snapshot.setQueueDepth(queue.size());
+			snapshot.setSubmitted(metrics.getSubmitted());
+			snapshot.setRejected(metrics.getRejected());
+			snapshot.setExpired(metrics.getExpired());
+			snapshot.setCompleted(metrics.getCompleted());
+			snapshot.setTotalWaitMillis(metrics.getTotalWaitMillis());
+			snapshot.setMaxWaitMillis(metrics.getMaxWaitMillis());
+			snapshot.setTotalRunMillis(metrics.getTotalRunMillis());
+			snapshot.setMaxRunMillis(metrics.getMaxRunMillis());
+			return snapshot;
+		}
+	}
+
+	private static final class Job<T> {
+		private final TranscodePriority priority;
+		private final long sequence;
+		private final long deadline;
+		private final long submitted = System.currentTimeMillis();
+		private final Supplier<CompletableFuture<T>> task;
+		private final CompletableFuture<T> result;
+
+		private Job(TranscodePriority priority, long sequence, long deadline, Supplier<CompletableFuture<T>> task,
+		            CompletableFuture<T> result) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.deadline = deadline;
+			this.task = task;
+			this.result = result;
+		}
+
+		private boolean isExpired(long now) {
+			return deadline > 0 && deadline < now;
+		}
+	}
+}
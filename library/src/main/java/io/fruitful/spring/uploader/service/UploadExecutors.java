@@ -0,0 +1,139 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.enumeration.ExecutionMode;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executors used by the {@link ExecutionMode#VIRTUAL_THREAD} mode. Blocking work (chunk writes, merges, fsyncs and
+ * process waits) runs on a virtual thread per task, CPU bound image work on a platform pool bounded to the number
+ * of cores.
+ */
+@Slf4j
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class UploadExecutors {
+
+	public static final long ASYNC_TIMEOUT = TimeUnit.MINUTES.toMillis(MediaProcessor.CONVERSION_TIMEOUT);
+
+	private static final ExecutorService BLOCKING_EXECUTOR = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("uploader-io-", 0).factory());
+
+	private static final ExecutorService IMAGE_EXECUTOR = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			Thread.ofPlatform().name("uploader-image-", 0).daemon().factory());
+
+	public static boolean isVirtual(ExecutionMode mode) {
+		return mode == ExecutionMode.VIRTUAL_THREAD;
+	}
+
+	public static ExecutorService getBlockingExecutor() {
+		return BLOCKING_EXECUTOR;
+	}
+
+	public static ExecutorService getImageExecutor() {
+		return IMAGE_EXECUTOR;
+	}
+
+	/**
+	 * Handle the request on a virtual thread and release the container thread, or inline when the mode is not
+	 * virtual or the servlet was not registered with async support.
+	 */
+	public static void dispatch(HttpServletRequest req, HttpServletResponse resp, ExecutionMode mode,
+	                            RequestHandler handler) {
+		if (!isVirtual(mode) || !req.isAsyncSupported()) {
+			handler.handle(req, resp);
+			return;
+		}
+		AsyncContext asyncContext = req.startAsync();
+		asyncContext.setTimeout(ASYNC_TIMEOUT);
+		// completed once, by the handler or by the container's timeout
+		AtomicBoolean completed = new AtomicBoolean();
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				log.error("Request {} timed out after {} ms", req.getRequestURI(), ASYNC_TIMEOUT);
+				if (!resp.isCommitted()) {
+					resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				}
+				complete(asyncContext, completed);
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				log.error("Request {} failed", req.getRequestURI(), event.getThrowable());
+				complete(asyncContext, completed);
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+				completed.set(true);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+				// not restarted
+			}
+		});
+		BLOCKING_EXECUTOR.execute(() -> {
+			try {
+				handler.handle(req, resp);
+			} finally {
+				complete(asyncContext, completed);
+			}
+		});
+	}
+
+	private static void complete(AsyncContext asyncContext, AtomicBoolean completed) {
+		if (!completed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// the container completed the request meanwhile
+			log.debug("Async context already completed", e);
+		}
+	}
+
+	/**
+	 * Run CPU bound image work on the bounded image pool in virtual mode, inline otherwise. Waiting for the result
+	 * from a virtual thread does not hold a carrier thread.
+	 */
+	public static <T> T compute(ExecutionMode mode, Callable<T> task) throws Exception {
+		if (!isVirtual(mode)) {
+			return task.call();
+		}
+		Future<T> future = IMAGE_EXECUTOR.submit(task);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception cause) {
+				throw cause;
+			}
+			throw e;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+	}
+
+	@FunctionalInterface
+	public interface RequestHandler {
+		void handle(HttpServletRequest req, HttpServletResponse resp);
+	}
+}
@@ -0,0 +1,64 @@
+package io.fruitful.spring.uploader.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out one lock per upload UUID so work on different uploads can run in parallel while work on the same
+ * upload is serialized. Entries are reference counted and removed once the last holder releases them.
+ */
+public class UploadLockRegistry {
+
+	private final Map<String, LockEntry> locks = new ConcurrentHashMap<>();
+
+	/**
+	 * Block until the lock of the given upload is acquired. The returned handle must be closed to release it.
+	 */
+	public Handle lock(String uuid) {
+		LockEntry entry = locks.compute(uuid, (key, existing) -> {
+			LockEntry lockEntry = existing != null ? existing : new LockEntry();
+			lockEntry.holders++;
+			return lockEntry;
+		});
+		entry.lock.lock();
+		return new Handle(uuid, entry);
+	}
+
+	/**
+	 * Number of uploads currently holding or waiting for a lock.
+	 */
+	public int size() {
+		return locks.size();
+	}
+
+	private void release(String uuid, LockEntry entry) {
+		entry.lock.unlock();
+		locks.computeIfPresent(uuid, (key, existing) -> --existing.holders == 0 ? null : existing);
+	}
+
+	private static final class LockEntry {
+		private final ReentrantLock lock = new ReentrantLock();
+		// guarded by the map's compute functions
+		private int holders;
+	}
+
+	public final class Handle implements AutoCloseable {
+		private final String uuid;
+		private final LockEntry entry;
+		private boolean released;
+
+		private Handle(String uuid, LockEntry entry) {
+			this.uuid = uuid;
+			this.entry = entry;
+		}
+
+		@Override
+		public void close() {
+			if (!released) {
+				released = true;
+				release(uuid, entry);
+			}
+		}
+	}
+}
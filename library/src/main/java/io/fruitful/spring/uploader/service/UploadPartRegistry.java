@@ -0,0 +1,147 @@
+package io.fruitful.spring.uploader.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the part files of every upload in progress by part index, filled as parts are written, so finishing an
+ * upload needs neither a directory listing nor a sort. An upload the registry does not know complete (after a
+ * restart, or parts written by another node sharing the folder) is rebuilt from one listing of its folder.
+ * Uploads left without a new part for {@link #IDLE_TIMEOUT_MILLIS} are forgotten, they are rebuilt from disk if
+ * their client comes back.
+ */
+@Slf4j
+public class UploadPartRegistry {
+
+	public static final long IDLE_TIMEOUT_MILLIS = TimeUnit.HOURS.toMillis(24);
+	private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final UploadPartRegistry DEFAULT = new UploadPartRegistry();
+
+	private final Map<String, UploadParts> uploads = new ConcurrentHashMap<>();
+	private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * The registry shared by the upload and chunk-done servlets.
+	 */
+	public static UploadPartRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Record a part file that is completely written.
+	 */
+	public void recordPart(String uuid, int totalParts, int partIndex, File partFile) {
+		if (partIndex < 0 || partIndex >= totalParts) {
+			return;
+		}
+		evictIdle();
+		UploadParts parts = uploads.compute(uuid, (key, existing) ->
+				existing != null && existing.files.length == totalParts ? existing : new UploadParts(totalParts));
+		parts.put(partIndex, partFile);
+	}
+
+	/**
+	 * @return the part files ordered by part index, null while a part is missing
+	 */
+	public File[] getCompleteParts(File dir, String uuid, int totalParts) {
+		evictIdle();
+		UploadParts parts = uploads.get(uuid);
+		// the temporary folder may have been cleaned behind the servlets' back
+		if (parts == null || parts.files.length != totalParts || !parts.isComplete() || !parts.exists()) {
+			parts = rebuild(dir, uuid, totalParts);
+		}
+		return parts.isComplete() ? parts.snapshot() : null;
+	}
+
+	public void remove(String uuid) {
+		uploads.remove(uuid);
+	}
+
+	/**
+	 * Number of uploads with parts in the registry.
+	 */
+	public int size() {
+		return uploads.size();
+	}
+
+	/**
+	 * Forget uploads that received no part for {@link #IDLE_TIMEOUT_MILLIS}, at most once per minute.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		long last = lastEviction.get();
+		if (now - last < EVICTION_INTERVAL_MILLIS || !lastEviction.compareAndSet(last, now)) {
+			return;
+		}
+		int before = uploads.size();
+		uploads.values().removeIf(parts -> now - parts.lastAccess > IDLE_TIMEOUT_MILLIS);
+		if (uploads.size() < before) {
+			log.debug("Evicted {} idle uploads from the part registry", before - uploads.size());
+		}
+	}
+
+	private UploadParts rebuild(File dir, String uuid, int totalParts) {
+		UploadParts parts = new UploadParts(Math.max(totalParts, 0));
+		File[] files = dir.listFiles(new PartitionFilesFilter(uuid));
+		if (files != null) {
+			for (File file : files) {
+				int partIndex = getPartIndex(uuid, file.getName());
+				if (partIndex >= 0 && partIndex < totalParts) {
+					parts.put(partIndex, file);
+				}
+			}
+		}
+		log.debug("File UUID {} rebuilt {} of {} parts from disk", uuid, parts.received, totalParts);
+		uploads.put(uuid, parts);
+		return parts;
+	}
+
+	private static int getPartIndex(String uuid, String partFileName) {
+		try {
+			// part files are named <uuid>_<index>
+			return Integer.parseInt(partFileName.substring(uuid.length() + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static final class UploadParts {
+		private final File[] files;
+		private int received;
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		private UploadParts(int totalParts) {
+			this.files = new File[totalParts];
+		}
+
+		private synchronized void put(int partIndex, File file) {
+			if (files[partIndex] == null) {
+				received++;
+			}
+			files[partIndex] = file;
+			lastAccess = System.currentTimeMillis();
+		}
+
+		private synchronized boolean exists() {
+			for (File file : files) {
+				if (file == null || !file.exists()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private synchronized boolean isComplete() {
+			return files.length > 0 && received == files.length;
+		}
+
+		private synchronized File[] snapshot() {
+			return files.clone();
+		}
+	}
+}
@@ -7,6 +7,8 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 
 @Slf4j
@@ -22,11 +24,15 @@ public class UploadService {
 	}
 
 	public VideoProcessor getVideoProcessor() {
-		return new VideoProcessor(uploadConfig.getFfmpegPath());
+		return new VideoProcessor(uploadConfig.getFfmpegPath(), uploadConfig.getTranscodeScheduler());
 	}
 
 	public AudioProcessor getAudioProcessor() {
-		return new AudioProcessor(uploadConfig.getFfmpegPath());
+		return new AudioProcessor(uploadConfig.getFfmpegPath(), uploadConfig.getTranscodeScheduler());
+	}
+
+	public TranscodeScheduler getTranscodeScheduler() {
+		return Optional.ofNullable(uploadConfig.getTranscodeScheduler()).orElse(TranscodeScheduler.getDefault());
 	}
 
 	public String getFullFilePath(String fileName) {
@@ -42,15 +48,26 @@ public class UploadService {
 	}
 
 	public String resizeGifImage(String imageFullPath, String size) throws IOException {
-		return ImageUtils.resizeGifImage(imageFullPath, size, rootUploadDirectory, uploadConfig.getFfmpegPath());
+		return ImageUtils.resizeGifImage(imageFullPath, size, rootUploadDirectory, uploadConfig.getFfmpegPath(),
+		                                 getTranscodeScheduler());
 	}
 
-	public String convertHeicImage(String imageFullPath) {
+	public String convertHeicImage(String imageFullPath) throws IOException {
 		return ImageUtils.convertHeicImage(imageFullPath, rootUploadDirectory, uploadConfig.getHeifConvertPath(),
-		                                   this::removeFileOnServer);
+		                                   getTranscodeScheduler(), this::removeFileOnServer);
 	}
 
 	public String extractImageDifferentSizes(String imageFullPath, String size) {
 		return ImageUtils.extractImageDifferentSizes(rootUploadDirectory, imageFullPath, size);
 	}
+
+	/**
+	 * Generate several sizes of an image with a single decode, the files are written on the image executor.
+	 *
+	 * @return path of every generated size
+	 */
+	public Map<String, String> extractImageDifferentSizes(String imageFullPath, Collection<String> sizes) {
+		return ImageUtils.extractImageDifferentSizes(rootUploadDirectory, imageFullPath, sizes,
+		                                             UploadExecutors.getImageExecutor());
+	}
 }
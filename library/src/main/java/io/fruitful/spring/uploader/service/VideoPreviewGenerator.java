@@ -0,0 +1,177 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.constant.MediaConst;
+import io.fruitful.spring.uploader.dto.CommandResult;
+import io.fruitful.spring.uploader.dto.MediaProbeResult;
+import io.fruitful.spring.uploader.dto.VideoPreview;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.util.DurationHelper;
+import io.fruitful.spring.uploader.util.FileUtils;
+import io.fruitful.spring.uploader.util.ImageUtils;
+import io.fruitful.spring.uploader.util.StringHelper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a scrub preview of a video with a single ffmpeg run: evenly spaced frames are tiled into a sprite sheet
+ * indexed by a WebVTT file, and the same frames at thumbnail size are the poster candidates. The poster is the
+ * candidate with the most luminance variance that is neither too dark nor too bright, which skips black fades and
+ * flat title cards.
+ */
+@Slf4j
+public class VideoPreviewGenerator {
+
+	public static final int TILE_WIDTH = 160;
+	public static final int MAX_COLUMNS = 10;
+
+	// candidates with a mean luminance outside this range are only picked when nothing else is left
+	private static final double MIN_MEAN_LUMINANCE = 40;
+	private static final double MAX_MEAN_LUMINANCE = 215;
+	// poster candidates are scored on a subsampled decode of about this width
+	private static final int SCORE_WIDTH = 64;
+
+	private final VideoProcessor processor;
+
+	public VideoPreviewGenerator(VideoProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * @param outputDir  folder receiving {@code <baseName>_sprite.jpg}, {@code <baseName>_sprite.vtt} and
+	 *                   {@code <baseName>_poster.jpg}
+	 * @param frameCount number of evenly spaced frames
+	 * @return the preview, null if the video could not be probed or no frame was extracted
+	 */
+	public VideoPreview generate(String input, File outputDir, String baseName, int frameCount) {
+		MediaProbeResult probe = processor.probe(input);
+		if (probe == null || probe.getDurationSeconds() == null || probe.getDurationSeconds() <= 0 || frameCount <= 0) {
+			return null;
+		}
+		double interval = probe.getDurationSeconds() / frameCount;
+		int columns = Math.min(MAX_COLUMNS, frameCount);
+		int rows = (frameCount + columns - 1) / columns;
+
+		File sprite = new File(outputDir, String.format("%s_sprite.%s", baseName, MediaConst.EXT_JPG));
+		File framesDir = new File(outputDir, String.format("%s_frames_%s", baseName,
+		                                                   StringHelper.generateUniqueString()));
+		FileUtils.mkDir(framesDir);
+		try {
+			// one decode, split to the sprite tiles and the poster candidates
+			String filter = String.format(Locale.ROOT, "[0:v]fps=%.6f,split=2[a][b];[a]scale=%d:-2,tile=%dx%d[sprite];"
+			                                           + "[b]scale=%d:-2[frames]", 1 / interval, TILE_WIDTH, columns,
+			                              rows, MediaConst.THUMBNAIL_WIDTH);
+			long start = System.currentTimeMillis();
+			CommandResult result = new ShellCommandExecutor(
+					processor.ffmpegPath, "-y", "-loglevel", "error", "-i", input, "-filter_complex", filter,
+					"-map", "[sprite]", "-frames:v", "1", "-q:v", "3", sprite.getAbsolutePath(),
+					"-map", "[frames]", "-frames:v", String.valueOf(frameCount), "-q:v", "2",
+					new File(framesDir, "frame_%03d." + MediaConst.EXT_JPG).getAbsolutePath())
+					.executeAndWait(processor.scheduler, CommandType.ENCODE, TranscodePriority.HIGH,
+					                MediaProcessor.CONVERSION_TIMEOUT, TimeUnit.MINUTES);
+			File[] frames = framesDir.listFiles();
+			if (result == null || !sprite.exists() || frames == null || frames.length == 0) {
+				log.error("No preview frames extracted from {}", input);
+				return null;
+			}
+			Arrays.sort(frames);
+			log.info("Extracted {} preview frames from {} in {} ms", frames.length, input,
+			         System.currentTimeMillis() - start);
+
+			VideoPreview preview = new VideoPreview();
+			preview.setSpriteFilename(sprite.getName());
+			preview.setFrameCount(frames.length);
+			preview.setColumns(columns);
+			preview.setRows(rows);
+			preview.setInterval(interval);
+			preview.setTileWidth(TILE_WIDTH);
+			Dimension spriteSize = ImageUtils.readImageSize(sprite);
+			preview.setTileHeight(spriteSize != null ? spriteSize.height / rows : 0);
+
+			File vtt = new File(outputDir, String.format("%s_sprite.vtt", baseName));
+			Files.writeString(vtt.toPath(), buildVtt(preview), StandardCharsets.UTF_8);
+			preview.setVttFilename(vtt.getName());
+
+			File poster = new File(outputDir, String.format("%s_poster.%s", baseName, MediaConst.EXT_JPG));
+			FileUtils.move(pickPoster(frames), poster);
+			preview.setPosterFilename(poster.getName());
+			return preview;
+		} catch (IOException e) {
+			log.error("Can not generate preview of {}", input, e);
+			return null;
+		} finally {
+			try {
+				FileUtils.deleteDirectory(framesDir);
+			} catch (IOException e) {
+				log.warn("Unable to delete {}", framesDir.getAbsolutePath());
+			}
+		}
+	}
+
+	private static String buildVtt(VideoPreview preview) {
+		StringBuilder vtt = new StringBuilder("WEBVTT\n");
+		for (int i = 0; i < preview.getFrameCount(); i++) {
+			int x = (i % preview.getColumns()) * preview.getTileWidth();
+			int y = (i / preview.getColumns()) * preview.getTileHeight();
+			vtt.append('\n')
+			   .append(DurationHelper.formatSexagesimal(i * preview.getInterval(), 2, 3))
+			   .append(" --> ")
+			   .append(DurationHelper.formatSexagesimal((i + 1) * preview.getInterval(), 2, 3))
+			   .append('\n')
+			   .append(String.format("%s#xywh=%d,%d,%d,%d", preview.getSpriteFilename(), x, y,
+			                         preview.getTileWidth(), preview.getTileHeight()))
+			   .append('\n');
+		}
+		return vtt.toString();
+	}
+
+	private static File pickPoster(File[] frames) throws IOException {
+		File best = frames[0];
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (File frame : frames) {
+			BufferedImage image = ImageUtils.readImage(frame, SCORE_WIDTH, 0);
+			if (image == null) {
+				continue;
+			}
+			double score = score(image);
+			if (score > bestScore) {
+				bestScore = score;
+				best = frame;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Luminance variance of the frame, pushed below every well exposed frame when it is too dark or too bright.
+	 */
+	private static double score(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double sum = 0;
+		double sumOfSquares = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int rgb = image.getRGB(x, y);
+				double luminance = 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+				sum += luminance;
+				sumOfSquares += luminance * luminance;
+			}
+		}
+		int pixels = width * height;
+		double mean = sum / pixels;
+		double variance = sumOfSquares / pixels - mean * mean;
+		boolean exposed = mean >= MIN_MEAN_LUMINANCE && mean <= MAX_MEAN_LUMINANCE;
+		// the largest possible variance is 128^2
+		return exposed ? variance : variance - 128 * 128;
+	}
+}
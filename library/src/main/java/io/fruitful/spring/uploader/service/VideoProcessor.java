@@ -1,12 +1,28 @@
 package io.fruitful.spring.uploader.service;
 
 import io.fruitful.spring.uploader.constant.MediaConst;
+import io.fruitful.spring.uploader.dto.MediaProbeResult;
+import io.fruitful.spring.uploader.dto.TranscodeProfile;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.StreamingFormat;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.util.DurationHelper;
 import io.fruitful.spring.uploader.util.FileUtils;
-import io.fruitful.spring.uploader.util.ImageUtils;
 import io.fruitful.spring.uploader.util.StringHelper;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class VideoProcessor extends MediaProcessor {
@@ -15,6 +31,10 @@ public class VideoProcessor extends MediaProcessor {
 		super(ffmpegPath);
 	}
 
+	public VideoProcessor(String ffmpegPath, TranscodeScheduler scheduler) {
+		super(ffmpegPath, scheduler);
+	}
+
 	/**
 	 * Convert to MP4 format
 	 */
@@ -33,7 +53,8 @@ public class VideoProcessor extends MediaProcessor {
 			                         "-crf", "25",
 			                         "-bufsize", "2M",
 			                         "-c:a", "aac",
-			                         destination).execute(CONVERSION_TIMEOUT);
+			                         destination).execute(scheduler, CommandType.ENCODE,
+			                                              TranscodePriority.LOW, CONVERSION_TIMEOUT);
 
 			if (outputFile.exists() && outputFile.length() > 0) {
 				return outputFile;
@@ -45,41 +66,280 @@ public class VideoProcessor extends MediaProcessor {
 		return null;
 	}
 
+	public Map<TranscodeProfile, File> transcode(String input, File outputDir, String baseName,
+	                                             List<TranscodeProfile> profiles) {
+		return transcode(input, outputDir, baseName, profiles, CONVERSION_TIMEOUT);
+	}
+
 	/**
-	 * Extract video thumbnail
+	 * Encode several renditions of a video with a single ffmpeg run: the input is decoded once and the decoded
+	 * frames are split to one scaler and encoder per profile.
 	 *
-	 * @param input
-	 * @param destination
-	 * @param startTime
-	 * @param thumbExt
-	 * @return
+	 * @param outputDir folder of the renditions, named {@code <baseName>_<profile name>.mp4}
+	 * @param timeout   minutes the run may take
+	 * @return the rendition of every profile that was encoded, in profile order
 	 */
-	public File process(String input, String destination, String startTime, String thumbExt) {
+	public Map<TranscodeProfile, File> transcode(String input, File outputDir, String baseName,
+	                                             List<TranscodeProfile> profiles, long timeout) {
+		if (profiles == null || profiles.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		List<String> arguments = new ArrayList<>(List.of("-y", "-loglevel", "error", "-i", input,
+		                                                 "-filter_complex", buildScaleFilter(profiles, false)));
+		for (int i = 0; i < profiles.size(); i++) {
+			arguments.addAll(renditionArguments(String.format("[o%d]", i), profiles.get(i),
+			                                    getRenditionFile(outputDir, baseName, profiles.get(i))));
+		}
 
+		long start = System.currentTimeMillis();
 		try {
-			File outputFile = new File(destination);
-			FileUtils.delete(outputFile);
+			new ShellCommandExecutor(ffmpegPath, arguments.toArray(new String[0]))
+					.execute(scheduler, CommandType.ENCODE, TranscodePriority.LOW, timeout);
+		} catch (IOException e) {
+			log.error("Renditions of {} were not encoded", input, e);
+			return new LinkedHashMap<>();
+		}
+		Map<TranscodeProfile, File> renditions = getRenditions(input, outputDir, baseName, profiles);
+		log.info("Encoded {} of {} renditions of {} in {} ms", renditions.size(), profiles.size(), input,
+		         System.currentTimeMillis() - start);
+		return renditions;
+	}
 
-			new ShellCommandExecutor(ffmpegPath, "-y", "-loglevel", "panic", "-i", input, "-ss", startTime,
-			                         "-vframes",
-			                         "1", destination).execute(CONVERSION_TIMEOUT);
+	/**
+	 * Encode the video to segmented streaming output with one variant per profile, decoding the input once. The
+	 * playlists are written as event playlists while the segments are produced, so the first segments can be served
+	 * before the encode is finished.
+	 *
+	 * @param streamDir       folder receiving the manifest, the variant playlists and the segments
+	 * @param segmentDuration seconds per segment, key frames are forced on segment boundaries
+	 * @param hasAudio        whether the input has an audio stream to package with every variant
+	 * @return completes with the manifest once the encode has finished, see {@link #getManifestFile}
+	 */
+	public CompletableFuture<File> segment(String input, File streamDir, List<TranscodeProfile> profiles,
+	                                       StreamingFormat format, int segmentDuration, boolean hasAudio) {
+		return segment(input, streamDir, profiles, format, segmentDuration, hasAudio, null, null,
+		               CONVERSION_TIMEOUT);
+	}
 
-			if (outputFile.exists() && outputFile.length() > 0) {
+	/**
+	 * As {@link #segment(String, File, List, StreamingFormat, int, boolean)}, when a rendition folder is given the
+	 * rendition of every profile is encoded by the same run from the same decoded and scaled frames, see
+	 * {@link #getRenditions}.
+	 *
+	 * @param timeout minutes the run may take
+	 */
+	public CompletableFuture<File> segment(String input, File streamDir, List<TranscodeProfile> profiles,
+	                                       StreamingFormat format, int segmentDuration, boolean hasAudio,
+	                                       File renditionDir, String baseName, long timeout) {
+		FileUtils.mkDir(streamDir);
+		boolean renditions = renditionDir != null;
+		List<String> arguments = new ArrayList<>(List.of("-y", "-loglevel", "error", "-i", input,
+		                                                 "-filter_complex", buildScaleFilter(profiles, renditions)));
+		List<String> streamMap = new ArrayList<>();
+		for (int i = 0; i < profiles.size(); i++) {
+			TranscodeProfile profile = profiles.get(i);
+			arguments.addAll(List.of("-map", String.format("[o%d]", i),
+			                         String.format("-c:v:%d", i), profile.getVideoCodec(),
+			                         String.format("-preset:v:%d", i), profile.getPreset(),
+			                         String.format("-crf:v:%d", i), String.valueOf(profile.getCrf())));
+			// HLS packages an audio rendition with every variant, DASH shares one audio adaptation set
+			if (hasAudio && (format != StreamingFormat.DASH || i == 0)) {
+				int audioIndex = format == StreamingFormat.DASH ? 0 : i;
+				arguments.addAll(List.of("-map", "0:a:0",
+				                         String.format("-c:a:%d", audioIndex), "aac",
+				                         String.format("-b:a:%d", audioIndex), profile.getAudioBitrate()));
+			}
+			streamMap.add(hasAudio ? String.format("v:%d,a:%d", i, i) : String.format("v:%d", i));
+		}
+		arguments.addAll(List.of("-force_key_frames", String.format("expr:gte(t,n_forced*%d)", segmentDuration)));
+
+		File manifest = getManifestFile(streamDir, format);
+		if (format == StreamingFormat.DASH) {
+			arguments.addAll(List.of("-f", "dash",
+			                         "-seg_duration", String.valueOf(segmentDuration),
+			                         "-use_template", "1",
+			                         "-use_timeline", "1",
+			                         "-streaming", "1",
+			                         "-adaptation_sets", hasAudio ? "id=0,streams=v id=1,streams=a" : "id=0,streams=v",
+			                         manifest.getAbsolutePath()));
+		} else {
+			boolean cmaf = format == StreamingFormat.CMAF;
+			String variantDir = new File(streamDir, "stream_%v").getAbsolutePath();
+			arguments.addAll(List.of("-f", "hls",
+			                         "-hls_time", String.valueOf(segmentDuration),
+			                         "-hls_playlist_type", "event",
+			                         "-hls_flags", "independent_segments",
+			                         "-hls_segment_type", cmaf ? "fmp4" : "mpegts",
+			                         "-hls_segment_filename", variantDir + File.separator
+			                                                  + (cmaf ? "segment_%05d.m4s" : "segment_%05d.ts"),
+			                         "-master_pl_name", format.getManifestName(),
+			                         "-var_stream_map", String.join(" ", streamMap),
+			                         variantDir + File.separator + "index.m3u8"));
+		}
+		if (renditions) {
+			for (int i = 0; i < profiles.size(); i++) {
+				arguments.addAll(renditionArguments(String.format("[r%d]", i), profiles.get(i),
+				                                    getRenditionFile(renditionDir, baseName, profiles.get(i))));
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		return new ShellCommandExecutor(ffmpegPath, arguments.toArray(new String[0]))
+				.executeAsync(scheduler, CommandType.ENCODE, TranscodePriority.LOW, timeout, TimeUnit.MINUTES)
+				.thenApply(result -> {
+					if (!result.isSuccess() || !manifest.exists()) {
+						throw new IllegalStateException(String.format("Segmenting %s to %s failed: %s", input, format,
+						                                              result.getStderr()));
+					}
+					log.info("Segmented {} to {} in {} ms", input, format, System.currentTimeMillis() - start);
+					return manifest;
+				});
+	}
+
+	public static File getManifestFile(File streamDir, StreamingFormat format) {
+		return new File(streamDir, format.getManifestName());
+	}
+
+	/**
+	 * Watch the stream folder for the manifest while the encode runs.
+	 *
+	 * @param encode the segmenting run, see {@link #segment}
+	 * @return completes with the manifest once it is written, with null when the encode ends without writing it
+	 */
+	public static CompletableFuture<File> awaitManifest(File manifest, CompletableFuture<File> encode) {
+		CompletableFuture<File> written = new CompletableFuture<>();
+		encode.whenComplete((file, throwable) -> written.complete(manifest.exists() ? manifest : null));
+		WatchService watcher;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			manifest.getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+			                                           StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			log.warn("Unable to watch {}, waiting for the encode to finish", manifest.getParent(), e);
+			return written;
+		}
+		// closing the watcher ends the wait below
+		written.whenComplete((file, throwable) -> closeWatcher(watcher));
+		UploadExecutors.getBlockingExecutor().execute(() -> {
+			try {
+				// checked once after registering, the manifest may have been written before
+				while (!manifest.exists()) {
+					WatchKey key = watcher.take();
+					key.pollEvents();
+					key.reset();
+				}
+				written.complete(manifest);
+			} catch (ClosedWatchServiceException e) {
+				// the encode has ended
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		return written;
+	}
+
+	private static void closeWatcher(WatchService watcher) {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			log.debug("Unable to close watcher: {}", e.getMessage());
+		}
+	}
+
+	public static File getRenditionFile(File outputDir, String baseName, TranscodeProfile profile) {
+		return new File(outputDir, String.format("%s_%s.%s", baseName, profile.getName(), MediaConst.EXT_MP4));
+	}
 
-				FileInputStream fileInputStream = new FileInputStream(outputFile);
-				InputStream stream = ImageUtils.resizeImage(fileInputStream, thumbExt,
-				                                            MediaConst.THUMBNAIL_WIDTH, 0);
-				org.apache.commons.io.FileUtils.copyInputStreamToFile(stream, outputFile);
+	/**
+	 * @return the rendition of every profile that was encoded, in profile order
+	 */
+	public static Map<TranscodeProfile, File> getRenditions(String input, File outputDir, String baseName,
+	                                                        List<TranscodeProfile> profiles) {
+		Map<TranscodeProfile, File> renditions = new LinkedHashMap<>();
+		for (TranscodeProfile profile : profiles) {
+			File output = getRenditionFile(outputDir, baseName, profile);
+			if (output.exists() && output.length() > 0) {
+				renditions.put(profile, output);
+			} else {
+				log.error("Rendition {} of {} was not encoded", profile.getName(), input);
+			}
+		}
+		return renditions;
+	}
 
+	private static List<String> renditionArguments(String label, TranscodeProfile profile, File output) {
+		FileUtils.silenceDelete(output);
+		return List.of("-map", label, "-map", "0:a?",
+		               "-c:v", profile.getVideoCodec(),
+		               "-preset", profile.getPreset(),
+		               "-crf", String.valueOf(profile.getCrf()),
+		               "-c:a", "aac",
+		               "-b:a", profile.getAudioBitrate(),
+		               "-movflags", "+faststart",
+		               output.getAbsolutePath());
+	}
+
+	// [0:v]split=2[v0][v1];[v0]scale=-2:'min(720,ih)'[o0];[v1]scale=-2:'min(480,ih)'[o1]
+	// with renditions every scaled stream is split again: [v0]scale=-2:'min(720,ih)',split=2[o0][r0]
+	private static String buildScaleFilter(List<TranscodeProfile> profiles, boolean renditions) {
+		StringBuilder filter = new StringBuilder(String.format("[0:v]split=%d", profiles.size()));
+		for (int i = 0; i < profiles.size(); i++) {
+			filter.append(String.format("[v%d]", i));
+		}
+		for (int i = 0; i < profiles.size(); i++) {
+			Integer maxHeight = profiles.get(i).getMaxHeight();
+			String scale = maxHeight != null ? String.format("scale=-2:'min(%d,ih)'", maxHeight) : "null";
+			filter.append(String.format(";[v%d]%s", i, scale))
+			      .append(renditions ? String.format(",split=2[o%d][r%d]", i, i) : String.format("[o%d]", i));
+		}
+		return filter.toString();
+	}
+
+	/**
+	 * Extract video thumbnail, scaled to {@link MediaConst#THUMBNAIL_WIDTH} by ffmpeg. The frame is written to a
+	 * unique scratch file next to the destination and moved over it, so concurrent extractions never share a file.
+	 *
+	 * @param input       path of the video
+	 * @param destination path of the thumbnail, its extension selects the image format
+	 * @param startTime   position of the frame, as accepted by ffmpeg's -ss
+	 * @return the thumbnail, null if no frame could be extracted
+	 */
+	public File process(String input, String destination, String startTime) {
+		File outputFile = new File(destination);
+		// keep the extension, ffmpeg picks the image format from it
+		File scratchFile = new File(outputFile.getParentFile(),
+		                            String.format("%s_%s", StringHelper.generateUniqueString(), outputFile.getName()));
+		try {
+			// -2 keeps the aspect ratio with an even height
+			String scale = String.format("scale=%d:-2", MediaConst.THUMBNAIL_WIDTH);
+			new ShellCommandExecutor(ffmpegPath, "-y", "-loglevel", "panic", "-ss", startTime, "-i", input,
+			                         "-vframes", "1", "-vf", scale,
+			                         scratchFile.getAbsolutePath()).execute(scheduler, CommandType.ENCODE,
+			                                                                TranscodePriority.HIGH,
+			                                                                FRAME_TIMEOUT);
+
+			if (scratchFile.exists() && scratchFile.length() > 0) {
+				FileUtils.move(scratchFile, outputFile);
 				return outputFile;
 			}
 
 		} catch (Exception e) {
 			log.error("Convert failed..", e);
+		} finally {
+			FileUtils.silenceDelete(scratchFile);
 		}
 		return null;
 	}
 
+	/**
+	 * @deprecated the image format is taken from the extension of the destination, use
+	 * {@link #process(String, String, String)}
+	 */
+	@Deprecated
+	public File process(String input, String destination, String startTime, String thumbExt) {
+		return process(input, destination, startTime);
+	}
+
 	public File process(File uploadDir, String localThumbnail, String playIconPath, String ext, Integer width,
 	                    Integer height) {
 		try {
@@ -105,13 +365,12 @@ public class VideoProcessor extends MediaProcessor {
 			new ShellCommandExecutor(ffmpegPath, "-y", "-loglevel", "panic", "-i", localThumbnail, "-i", playIconPath,
 			                         "-filter_complex", overlay, "-preset", "superfast",
 			                         randomFile.toPath().toString()).execute(
-					CONVERSION_TIMEOUT);
+					scheduler, CommandType.ENCODE, TranscodePriority.HIGH, FRAME_TIMEOUT);
 
 			if (randomFile.exists() && randomFile.length() > 0) {
 
 				File output = new File(localThumbnail);
-				FileInputStream fileInputStream = new FileInputStream(randomFile);
-				org.apache.commons.io.FileUtils.copyInputStreamToFile(fileInputStream, output);
+				FileUtils.move(randomFile, output);
 
 				return output;
 			}
@@ -123,53 +382,20 @@ public class VideoProcessor extends MediaProcessor {
 	}
 
 	public String detectRotation(String filePath) {
-		// sample: "TAG:rotate=90"
-		String regex = "rotate=(.*)";
-
-		try {
-			// // "v" is log level
-			// ProcessBuilder pb = new ProcessBuilder(ffprobePath, "-v",
-			// "error", "-show_entries", "stream_tags=rotate",
-			// "-of", "default=noprint_wrappers=1", filePath);
-
-			String outPutString = new ShellCommandExecutor(ffprobePath, "-v", "error", "-show_entries",
-			                                               "stream_tags=rotate", "-of", "default=noprint_wrappers=1",
-			                                               filePath).execute(CONVERSION_TIMEOUT);
-
-			if (StringHelper.hasText(outPutString)) {
-				// Find info in output string
-				return StringHelper.extract(outPutString, regex);
-			}
-		} catch (Exception e) {
-			log.error("Detect rotation error", e);
+		MediaProbeResult result = probe(filePath);
+		if (result == null || result.getRotation() == 0) {
+			return null;
 		}
-		return null;
+		return String.valueOf(result.getRotation());
 	}
 
-
 	public String detectDuration(String filePath) {
-		String[] cmd = {ffmpegPath, "-i", filePath};
-
-		try {
-			Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			String line;
-
-			while ((line = reader.readLine()) != null) {
-				if (line.contains("Duration:")) {
-					String durationLine = line.trim();
-					return durationLine.substring(durationLine.indexOf(":") + 2, durationLine.indexOf(","));
-				}
-			}
-
-			process.waitFor();
-			reader.close();
-
-		} catch (IOException | InterruptedException e) {
-			log.error(e.getMessage(), e);
-			Thread.currentThread().interrupt();
+		MediaProbeResult result = probe(filePath);
+		if (result == null || result.getDurationSeconds() == null) {
+			return null;
 		}
-		return null;
+		// sample: 00:00:59.40
+		return DurationHelper.formatSexagesimal(result.getDurationSeconds(), 2, 2);
 	}
 
 }
@@ -0,0 +1,105 @@
+package io.fruitful.spring.uploader.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of large I/O buffers shared by the copy paths. The pool is striped by thread so concurrent uploads rarely
+ * meet on the same stripe, a buffer is leased until the lease is closed and is dropped when its stripe is full.
+ * The pool owns at most a fixed number of buffers, a lease beyond it gets a heap buffer that is never pooled, so a
+ * burst of uploads cannot exhaust direct memory.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final boolean direct;
+	private final int maxBuffers;
+	private final ArrayBlockingQueue<ByteBuffer>[] stripes;
+	// buffers owned by the pool, idle in a stripe or leased
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize       capacity of every buffer in bytes
+	 * @param buffersPerStripe number of idle buffers kept per stripe, there is one stripe per core
+	 * @param maxBuffers       number of buffers the pool may own, idle or leased
+	 * @param direct           direct buffers for channel to channel copies, heap buffers for streams needing an array
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int bufferSize, int buffersPerStripe, int maxBuffers, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.maxBuffers = maxBuffers;
+		this.stripes = new ArrayBlockingQueue[Runtime.getRuntime().availableProcessors()];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ArrayBlockingQueue<>(buffersPerStripe);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Number of buffers owned by the pool, idle or leased.
+	 */
+	public int getAllocated() {
+		return allocated.get();
+	}
+
+	/**
+	 * Lease a cleared buffer. The returned lease must be closed to give the buffer back.
+	 */
+	public Lease acquire() {
+		ByteBuffer buffer = getStripe().poll();
+		boolean pooled = true;
+		if (buffer == null) {
+			if (allocated.getAndUpdate(count -> count < maxBuffers ? count + 1 : count) < maxBuffers) {
+				buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+			} else {
+				// every pooled buffer is leased, this one is left to the garbage collector
+				buffer = ByteBuffer.allocate(bufferSize);
+				pooled = false;
+			}
+		}
+		buffer.clear();
+		return new Lease(buffer, pooled);
+	}
+
+	private ArrayBlockingQueue<ByteBuffer> getStripe() {
+		return stripes[(int) (Thread.currentThread().threadId() % stripes.length)];
+	}
+
+	public final class Lease implements AutoCloseable {
+		private final boolean pooled;
+		private ByteBuffer buffer;
+
+		private Lease(ByteBuffer buffer, boolean pooled) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+		}
+
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * The backing array of a heap buffer.
+		 */
+		public byte[] array() {
+			return buffer.array();
+		}
+
+		@Override
+		public void close() {
+			if (buffer == null) {
+				return;
+			}
+			if (pooled && !getStripe().offer(buffer)) {
+				// the stripe of the closing thread is full, the pool no longer owns the buffer
+				allocated.decrementAndGet();
+			}
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package io.fruitful.spring.uploader.util;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Checksums of uploaded content: CRC32C per chunk and SHA-256 for the whole file, both written and compared as
+ * lowercase hex.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ChecksumHelper {
+
+	public static final String FILE_DIGEST_ALGORITHM = "SHA-256";
+
+	public static MessageDigest newFileDigest() {
+		try {
+			return MessageDigest.getInstance(FILE_DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String toHex(byte[] digest) {
+		return HexFormat.of().formatHex(digest);
+	}
+
+	public static String toHex(long crc) {
+		return String.format("%08x", crc);
+	}
+
+	/**
+	 * @param expected CRC32C sent by the client as hex, nothing is checked when empty
+	 * @throws IOException when the chunk content does not match the client checksum
+	 */
+	public static void assertChunkChecksum(String expected, long actual) throws IOException {
+		if (StringHelper.isEmpty(expected)) {
+			return;
+		}
+		long expectedCrc;
+		try {
+			expectedCrc = Long.parseLong(expected.trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk checksum " + expected);
+		}
+		if (expectedCrc != actual) {
+			throw new IOException(String.format("Chunk checksum mismatch. Actual CRC32C %s. Expected CRC32C %s.",
+			                                    toHex(actual), expected));
+		}
+	}
+
+	/**
+	 * @param expected SHA-256 sent by the client as hex, nothing is checked when empty
+	 */
+	public static boolean matchesFileChecksum(String expected, String actual) {
+		return StringHelper.isEmpty(expected) || expected.trim().equalsIgnoreCase(actual);
+	}
+}
@@ -6,6 +6,7 @@ import lombok.NoArgsConstructor;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 
 import java.time.Duration;
+import java.util.Locale;
 
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public final class DurationHelper {
@@ -40,6 +41,18 @@ public final class DurationHelper {
 		return duration.getSeconds();
 	}
 
+	/**
+	 * Format seconds as hours:minutes:seconds.fraction, e.g. 0:00:59.400000 as printed by ffprobe -sexagesimal or
+	 * 00:00:59.40 as printed by ffmpeg.
+	 */
+	public static String formatSexagesimal(double durationInSeconds, int hourDigits, int fractionDigits) {
+		long hours = (long) (durationInSeconds / DateTimeHelper.ONE_HOUR_SECOND);
+		long minutes = (long) (durationInSeconds % DateTimeHelper.ONE_HOUR_SECOND / DateTimeHelper.ONE_MIN_SECOND);
+		double seconds = durationInSeconds % DateTimeHelper.ONE_MIN_SECOND;
+		String format = "%0" + hourDigits + "d:%02d:%0" + (fractionDigits + 3) + "." + fractionDigits + "f";
+		return String.format(Locale.ROOT, format, hours, minutes, seconds);
+	}
+
 	public static String formatDuration(long durationInSeconds) {
 		String format = DURATION_FORMAT_GT_HOUR;
 		if (durationInSeconds < DateTimeHelper.ONE_HOUR_SECOND) {
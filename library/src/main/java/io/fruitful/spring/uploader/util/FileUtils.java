@@ -1,6 +1,7 @@
 package io.fruitful.spring.uploader.util;
 
 import io.fruitful.spring.uploader.dto.MultipartFile;
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
 import io.fruitful.spring.uploader.exception.MergePartsException;
 import io.fruitful.spring.uploader.service.PartitionFilesFilter;
 import lombok.AccessLevel;
@@ -12,7 +13,13 @@ import org.apache.tika.Tika;
 import org.apache.tika.mime.MimeTypes;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 
 @Slf4j
@@ -24,7 +31,15 @@ public class FileUtils {
 	public static final char WINDOWS_SEPARATOR = '\\';
 	public static final char EXTENSION_SEPARATOR = '.';
 	public static final int BUFFER_SIZE = 4096;
+	// streams read into arrays, file to file copies use direct buffers the kernel fills without an extra copy. At
+	// most 16 MB of stream buffers and 64 MB of direct memory are pooled
+	public static final BufferPool STREAM_BUFFERS = new BufferPool(64 * 1024, 4, 256, false);
+	public static final BufferPool FILE_BUFFERS = new BufferPool(1024 * 1024, 2, 64, true);
+	// bytes read from the head of a file to detect its content type
+	public static final int CONTENT_DETECTION_LIMIT = 64 * 1024;
 	public static final Map<String, String> CONTENT_MAP = new HashMap<>();
+	// Tika is thread safe and expensive to create, one instance is shared
+	private static final Tika TIKA = new Tika();
 
 	static {
 		CONTENT_MAP.put("image/jpg", "jpg");
@@ -78,17 +93,84 @@ public class FileUtils {
 	}
 
 	public static void mergeFiles(File outputFile, File partFile) throws IOException {
-		FileOutputStream fos = new FileOutputStream(outputFile, true);
+		try (FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+		                                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		     FileChannel in = FileChannel.open(partFile.toPath(), StandardOpenOption.READ)) {
+			transferPart(partFile, in, out);
+		}
+	}
 
-		try (FileInputStream fis = new FileInputStream(partFile)) {
-			try {
-				IOUtils.copy(fis, fos);
-			} finally {
-				IOUtils.closeQuietly(fis);
+	/**
+	 * Concatenate the given parts into the output file. The output channel is opened once and every part is moved
+	 * with {@link FileChannel#transferTo}, so the copy can stay in the kernel (sendfile / copy_file_range).
+	 */
+	public static void mergeParts(File[] parts, File outputFile) throws IOException {
+		mergeParts(parts, outputFile, null);
+	}
+
+	/**
+	 * Concatenate the given parts into the output file. With a digest the parts cannot stay in the kernel, every part
+	 * is read once and fed to the digest on its way to the output, so the whole-file digest needs no second read.
+	 */
+	public static void mergeParts(File[] parts, File outputFile, MessageDigest digest) throws IOException {
+		try (FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+		                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		     BufferPool.Lease lease = FILE_BUFFERS.acquire()) {
+			long position = 0;
+			for (File part : parts) {
+				try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+					position += digest != null ? copyDigesting(in, out, digest, lease.buffer()) :
+					            transferPart(part, in, out);
+				}
 			}
-		} finally {
-			IOUtils.closeQuietly(fos);
+			log.debug("Merged {} parts into {} ({} bytes)", parts.length, outputFile.getName(), position);
+		}
+	}
+
+	private static long transferPart(File part, FileChannel in, FileChannel out) throws IOException {
+		long size = in.size();
+		long transferred = 0;
+		while (transferred < size) {
+			long count = in.transferTo(transferred, size - transferred, out);
+			if (count <= 0) {
+				throw new IOException(String.format("Unable to transfer part %s, %d of %d bytes merged",
+				                                    part.getName(), transferred, size));
+			}
+			transferred += count;
+		}
+		return size;
+	}
+
+	/**
+	 * Digest the whole file, for content whose parts did not arrive in order.
+	 */
+	public static void digest(File file, MessageDigest digest) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		     BufferPool.Lease lease = FILE_BUFFERS.acquire()) {
+			ByteBuffer buffer = lease.buffer();
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+	}
+
+	private static long copyDigesting(FileChannel in, FileChannel out, MessageDigest digest, ByteBuffer buffer)
+			throws IOException {
+		long copied = 0;
+		buffer.clear();
+		while (in.read(buffer) != -1) {
+			buffer.flip();
+			buffer.mark();
+			digest.update(buffer);
+			buffer.reset();
+			while (buffer.hasRemaining()) {
+				copied += out.write(buffer);
+			}
+			buffer.clear();
 		}
+		return copied;
 	}
 
 	public static String getName(final String fileName) {
@@ -129,11 +211,12 @@ public class FileUtils {
 	}
 
 	public static void copy(final InputStream in, final OutputStream out) throws IOException {
-		byte[] buffer = new byte[1024];
-		int count;
-
-		while ((count = in.read(buffer)) != -1) {
-			out.write(buffer, 0, count);
+		try (BufferPool.Lease lease = STREAM_BUFFERS.acquire()) {
+			byte[] buffer = lease.array();
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
 		}
 
 		// Flush out stream, to write any remaining buffered data
@@ -142,23 +225,25 @@ public class FileUtils {
 
 	public static File saveFileOnServer(File uploadDir, InputStream file, String extension, String fileName)
 			throws IOException {
-		long start = System.currentTimeMillis();
-		// Generate random file name if not provide
-		if (StringHelper.isEmpty(fileName)) {
-			fileName = UUID.randomUUID().toString().replace("-", "");
-			// generate random name with no extension
-			if (StringHelper.hasText(extension)) {
-				fileName = String.format("%s%s%s", fileName, FileUtils.EXTENSION_SEPARATOR, extension);
-			}
-		}
+		return saveFileOnServer(uploadDir, file, extension, fileName, null);
+	}
 
-		File fileOnServer = new File(uploadDir, fileName);
+	/**
+	 * Save a file that can be regenerated from the upload (thumbnail, converted image). It is synced under
+	 * {@link DurabilityPolicy#ALWAYS} and, as it always was, when no policy is set.
+	 */
+	public static File saveFileOnServer(File uploadDir, InputStream file, String extension, String fileName,
+	                                    DurabilityPolicy durabilityPolicy) throws IOException {
+		long start = System.currentTimeMillis();
+		File fileOnServer = new File(uploadDir, resolveFileName(extension, fileName));
 
 		try (FileOutputStream fos = new FileOutputStream(fileOnServer)) {
 			FileUtils.copy(file, fos);
-			// To be certain that the file is actually written to disk
 			fos.flush();
-			fos.getFD().sync();
+			if (durabilityPolicy == null || durabilityPolicy == DurabilityPolicy.ALWAYS) {
+				// To be certain that the file is actually written to disk
+				fos.getFD().sync();
+			}
 		} catch (Exception e) {
 			throw new IOException(e.getMessage());
 		} finally {
@@ -169,18 +254,50 @@ public class FileUtils {
 		return fileOnServer;
 	}
 
+	/**
+	 * Move a file into the upload directory instead of copying its content. The rename is atomic when source and
+	 * target are on the same file system.
+	 */
+	public static File moveFileOnServer(File uploadDir, MultipartFile file, String extension, String fileName)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		File fileOnServer = new File(uploadDir, resolveFileName(extension, fileName));
+		file.transferTo(fileOnServer);
+		log.warn("Move file {} on server in {} ms", fileOnServer.getAbsolutePath(),
+		         System.currentTimeMillis() - start);
+		return fileOnServer;
+	}
+
+	public static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			log.debug("Atomic move not supported from {} to {}", source.getAbsolutePath(), target.getAbsolutePath());
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String resolveFileName(String extension, String fileName) {
+		// Generate random file name if not provide
+		if (StringHelper.isEmpty(fileName)) {
+			fileName = UUID.randomUUID().toString().replace("-", "");
+			// generate random name with no extension
+			if (StringHelper.hasText(extension)) {
+				fileName = String.format("%s%s%s", fileName, FileUtils.EXTENSION_SEPARATOR, extension);
+			}
+		}
+		return fileName;
+	}
+
 	public static String guessContentType(File uploadedFile) {
 		String contentType = null;
 		if (uploadedFile != null && uploadedFile.exists()) {
 			try {
-				Tika tika = new Tika();
-
 				// detect by filename first
-				contentType = tika.detect(uploadedFile.getName());
+				contentType = TIKA.detect(uploadedFile.getName());
 
 				if (StringHelper.isEmpty(contentType) || contentType.equalsIgnoreCase(MimeTypes.OCTET_STREAM)) {
-					FileInputStream fileInputStream = new FileInputStream(uploadedFile);
-					contentType = tika.detect(fileInputStream);
+					contentType = TIKA.detect(readHead(uploadedFile, uploadedFile.length()));
 				}
 
 			} catch (Exception e) {
@@ -190,13 +307,43 @@ public class FileUtils {
 		return contentType;
 	}
 
+	/**
+	 * Sniff the content type of an upload from the first bytes of its content, the name only refines what the bytes
+	 * tell (e.g. a zip container).
+	 */
+	public static String guessContentType(String filename, byte[] head) {
+		return TIKA.detect(head, filename);
+	}
+
+	/**
+	 * Read the bytes content detection looks at from the start of the file, at most the given length.
+	 */
+	public static byte[] readHead(File file, long length) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate((int) Math.min(CONTENT_DETECTION_LIMIT,
+			                                                     Math.min(length, channel.size())));
+			while (head.hasRemaining() && channel.read(head, head.position()) != -1) {
+				// a read may return fewer bytes than asked
+			}
+			return Arrays.copyOf(head.array(), head.position());
+		}
+	}
+
 	public static void writeFile(InputStream in, File out, Long expectedFileSize) throws IOException {
+		writeFile(in, out, expectedFileSize, null);
+	}
+
+	/**
+	 * Write an uploaded chunk, synced only under {@link DurabilityPolicy#ALWAYS}.
+	 */
+	public static void writeFile(InputStream in, File out, Long expectedFileSize, DurabilityPolicy durabilityPolicy)
+			throws IOException {
 		FileOutputStream fos = null;
 		FileUtils.silenceDelete(out);
 		try {
 			fos = new FileOutputStream(out);
 
-			IOUtils.copy(in, fos);
+			FileUtils.copy(in, fos);
 
 			if (expectedFileSize != null) {
 				Long bytesWrittenToDisk = out.length();
@@ -209,6 +356,10 @@ public class FileUtils {
 							              bytesWrittenToDisk, expectedFileSize));
 				}
 			}
+			if (durabilityPolicy == DurabilityPolicy.ALWAYS) {
+				fos.flush();
+				fos.getFD().sync();
+			}
 		} catch (Exception e) {
 			FileUtils.silenceDelete(out);
 			throw new IOException(e);
@@ -224,6 +375,27 @@ public class FileUtils {
 		}
 	}
 
+	/**
+	 * Force the content and metadata of the file to the device.
+	 */
+	public static void sync(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Force the entries of the folder to the device so a file renamed into it survives a crash. Not every platform
+	 * can open a folder for this, failures are only logged.
+	 */
+	public static void syncDirectory(File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			log.debug("Unable to sync directory {}", directory.getAbsolutePath(), e);
+		}
+	}
+
 	public static void deleteDirectory(final File directory) throws IOException {
 		Objects.requireNonNull(directory, "directory");
 		if (!directory.exists()) {
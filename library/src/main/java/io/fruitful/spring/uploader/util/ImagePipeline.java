@@ -0,0 +1,143 @@
+package io.fruitful.spring.uploader.util;
+
+import io.fruitful.spring.uploader.constant.MediaConst;
+import io.fruitful.spring.uploader.enumeration.DurabilityPolicy;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decodes an image once and derives everything else (dimensions, thumbnail, size variants) from the decoded image
+ * kept in memory, instead of reading the file again for every step.
+ */
+@Slf4j
+@Getter
+public class ImagePipeline {
+
+	// EXIF orientations rotated by 90 or 270 degrees by ImageUtils#rotateImage
+	private static final Set<Object> QUARTER_TURNS = Set.of(6, 8);
+
+	private final File source;
+	private final Map<Object, Object> exif;
+	// dimensions of the full image, after orientation
+	private final int width;
+	private final int height;
+	// oriented and decoded at the lowest resolution the pipeline needs
+	private final BufferedImage image;
+
+	private ImagePipeline(File source, Map<Object, Object> exif, int width, int height, BufferedImage image) {
+		this.source = source;
+		this.exif = exif;
+		this.width = width;
+		this.height = height;
+		this.image = image;
+	}
+
+	/**
+	 * @param orient      resize large images and apply the EXIF orientation, as {@link ImageUtils#rotateImage(File)}
+	 * @param targetWidth width the decoded image is used at, it is decoded subsampled down to it. 0 for full size
+	 */
+	public static ImagePipeline open(File imageFile, boolean orient, int targetWidth) throws IOException {
+		long start = System.currentTimeMillis();
+		long fileSize = imageFile.length();
+		Map<Object, Object> exif = orient ? ImageUtils.readImageEXIF(imageFile) : Collections.emptyMap();
+		BufferedImage image;
+		int width = 0;
+		int height = 0;
+		if (orient && fileSize >= ImageUtils.MAX_STATIC_IMAGE_FILE_SIZE) {
+			// large images are reduced to MediaConst.RESIZE_IMAGE_WIDTH, which is also the size reported
+			image = applyOrientation(ImageUtils.readImage(imageFile, MediaConst.RESIZE_IMAGE_WIDTH, 0), fileSize, exif);
+			if (image != null) {
+				width = image.getWidth();
+				height = image.getHeight();
+			}
+		} else {
+			Dimension size = ImageUtils.readImageSize(imageFile);
+			boolean quarterTurn = orient && QUARTER_TURNS.contains(exif.get("orientation"));
+			// the stored height becomes the displayed width of a quarter turned image
+			image = quarterTurn ? ImageUtils.readImage(imageFile, 0, targetWidth) :
+			        ImageUtils.readImage(imageFile, targetWidth, 0);
+			if (orient) {
+				image = applyOrientation(image, fileSize, exif);
+			}
+			if (size != null) {
+				width = quarterTurn ? size.height : size.width;
+				height = quarterTurn ? size.width : size.height;
+			}
+		}
+		log.warn("Decode image {} in {} ms", imageFile.getName(), System.currentTimeMillis() - start);
+		return new ImagePipeline(imageFile, exif, width, height, image);
+	}
+
+	private static BufferedImage applyOrientation(BufferedImage image, long fileSize, Map<Object, Object> exif) {
+		try {
+			return ImageUtils.rotateImage(image, fileSize, exif);
+		} catch (Exception e) {
+			log.error("Unable to check Image Rotated");
+			return image;
+		}
+	}
+
+	public boolean isDecoded() {
+		return image != null;
+	}
+
+	/**
+	 * Resize the decoded image to the given width and save it with a random name in the upload folder.
+	 *
+	 * @param ext image format written, the file is named with the jpg extension like other thumbnails
+	 */
+	public Rendition writeThumbnail(File uploadDir, String ext, int width, int height) throws IOException {
+		return writeThumbnail(uploadDir, ext, width, height, null);
+	}
+
+	public Rendition writeThumbnail(File uploadDir, String ext, int width, int height,
+	                                DurabilityPolicy durabilityPolicy) throws IOException {
+		if (image == null) {
+			return null;
+		}
+		BufferedImage scaledImage = ImageUtils.resizeImage(image, width, height);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(scaledImage, ext, output);
+		File thumbnail = FileUtils.saveFileOnServer(uploadDir, new ByteArrayInputStream(output.toByteArray()),
+		                                            MediaConst.EXT_JPG, null, durabilityPolicy);
+		return new Rendition(thumbnail, scaledImage.getWidth(), scaledImage.getHeight());
+	}
+
+	/**
+	 * Save the decoded image as is, in the given format, with a random name in the upload folder.
+	 */
+	public Rendition writeImage(File uploadDir, String ext) throws IOException {
+		return writeImage(uploadDir, ext, null);
+	}
+
+	public Rendition writeImage(File uploadDir, String ext, DurabilityPolicy durabilityPolicy) throws IOException {
+		if (image == null) {
+			return null;
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(image, ext, output);
+		File file = FileUtils.saveFileOnServer(uploadDir, new ByteArrayInputStream(output.toByteArray()), ext, null,
+		                                       durabilityPolicy);
+		return new Rendition(file, image.getWidth(), image.getHeight());
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static class Rendition {
+		private final File file;
+		private final int width;
+		private final int height;
+	}
+}
@@ -8,6 +8,11 @@ import com.drew.metadata.exif.ExifDirectoryBase;
 import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.jpeg.JpegDirectory;
 import io.fruitful.spring.uploader.constant.MediaConst;
+import io.fruitful.spring.uploader.dto.CommandResult;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.service.ShellCommandExecutor;
+import io.fruitful.spring.uploader.service.TranscodeScheduler;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -15,12 +20,22 @@ import org.apache.commons.io.FilenameUtils;
 import org.imgscalr.Scalr;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
 import java.io.*;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -38,237 +53,291 @@ public class ImageUtils {
 	public static final double IMAGE_SIZE_XXLARGE_WIDTH = 1920;
 	public static final int MAX_STATIC_IMAGE_FILE_SIZE = 3000000;
 
+	// generated sizes from the largest to the smallest
+	private static final Map<String, Double> SIZE_WIDTHS = new LinkedHashMap<>();
+
+	static {
+		SIZE_WIDTHS.put(MediaConst.IMAGE_SIZE_XXLARGE, IMAGE_SIZE_XXLARGE_WIDTH);
+		SIZE_WIDTHS.put(MediaConst.IMAGE_SIZE_XLARGE, IMAGE_SIZE_XLARGE_WIDTH);
+		SIZE_WIDTHS.put(MediaConst.IMAGE_SIZE_LARGE, IMAGE_SIZE_LARGE_WIDTH);
+		SIZE_WIDTHS.put(MediaConst.IMAGE_SIZE_MEDIUM, IMAGE_SIZE_MEDIUM_WIDTH);
+		SIZE_WIDTHS.put(MediaConst.IMAGE_SIZE_SMALL, IMAGE_SIZE_SMALL_WIDTH);
+	}
+
 	public static BufferedImage rotateImage(File imageFile) {
 		long start = System.currentTimeMillis();
 		BufferedImage buffOriginalImage = null;
 		if (imageFile.exists()) {
 			try {
-				buffOriginalImage = ImageIO.read(imageFile);
+				long fileSize = imageFile.length();
+				// large images are reduced anyway, decode them subsampled close to the target width
+				int targetWidth = fileSize >= MAX_STATIC_IMAGE_FILE_SIZE ? MediaConst.RESIZE_IMAGE_WIDTH : 0;
+				buffOriginalImage = rotateImage(readImage(imageFile, targetWidth, 0), fileSize,
+				                                readImageEXIF(imageFile));
+			} catch (Exception e) {
+				log.error("Unable to check Image Rotated");
+			}
+		}
+		log.warn("Rotate image in {} ms", System.currentTimeMillis() - start);
+		return buffOriginalImage;
+	}
 
-				// must resize if image too large
-				if (imageFile.length() >= MAX_STATIC_IMAGE_FILE_SIZE && buffOriginalImage.getWidth() > 0) {
-					float ratio = ((float) buffOriginalImage.getHeight() / (float) buffOriginalImage.getWidth());
-					int targetWidth = MediaConst.RESIZE_IMAGE_WIDTH;
-					int targetHeight = Math.round(targetWidth * ratio);
+	/**
+	 * Resize an already decoded image if its file is too large and rotate it according to its EXIF orientation.
+	 *
+	 * @param fileSize size of the image file in bytes
+	 * @param exif     EXIF info as read by {@link #readImageEXIF(File)}
+	 */
+	public static BufferedImage rotateImage(BufferedImage buffOriginalImage, long fileSize, Map<Object, Object> exif) {
+		if (buffOriginalImage == null) {
+			return null;
+		}
+		// must resize if image too large
+		if (fileSize >= MAX_STATIC_IMAGE_FILE_SIZE && buffOriginalImage.getWidth() > 0) {
+			float ratio = ((float) buffOriginalImage.getHeight() / (float) buffOriginalImage.getWidth());
+			int targetWidth = MediaConst.RESIZE_IMAGE_WIDTH;
+			int targetHeight = Math.round(targetWidth * ratio);
+
+			buffOriginalImage = Scalr.resize(buffOriginalImage, Scalr.Method.QUALITY, targetWidth,
+			                                 targetHeight, NO_FILTER);
+		}
 
-					buffOriginalImage = Scalr.resize(buffOriginalImage, Scalr.Method.QUALITY, targetWidth,
-					                                 targetHeight, NO_FILTER);
-				}
+		int orientation = 0;
+		if (exif.get("orientation") != null) {
+			orientation = (int) exif.get("orientation");
+		}
 
+		// Rotate image if needed
+		if (orientation > 1) {
+			switch (orientation) {
+				case 2: // 2) transform="-flip horizontal";
+					buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.FLIP_HORZ, NO_FILTER);
+					break;
+				case 3: // 3) transform="-rotate 180";
+					buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.CW_180, NO_FILTER);
+					break;
+				case 4: // 4) transform="-flip vertical";
+					buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.FLIP_VERT, NO_FILTER);
+					break;
+				case 5: // 5) transform="-transpose";
+					// Current library not support this
+					break;
+				case 6: // 6) transform="-rotate 90";
+					buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.CW_90, NO_FILTER);
+					break;
+				case 7: // 7) transform="-transverse";
+					// Current library not support this
+					break;
+				case 8: // 8) transform="-rotate 270";
+					buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.CW_270, NO_FILTER);
+					break;
+				default:
+					break;
+			}
+		}
+		return buffOriginalImage;
+	}
 
-				// Check image EXIF to read image size, orientation
-				Map<Object, Object> info = readImageEXIF(imageFile);
+	/**
+	 * Read the image dimensions from its header without decoding the pixels.
+	 *
+	 * @return null if no reader supports the image
+	 */
+	public static Dimension readImageSize(File imageFile) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			ImageReader reader = getImageReader(input);
+			if (reader == null) {
+				return null;
+			}
+			try {
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
 
-				int orientation = 0;
-				if (info.get("orientation") != null) {
-					orientation = (int) info.get("orientation");
-				}
+	/**
+	 * Decode an image at the smallest resolution that is still at least the target size. The reader scales the
+	 * image while decoding when it supports a render size, otherwise it skips rows and columns with the largest
+	 * subsampling that still meets the target, so the full resolution raster is never allocated.
+	 *
+	 * @param targetWidth  minimum width of the decoded image, 0 for no constraint
+	 * @param targetHeight minimum height of the decoded image, 0 for no constraint
+	 * @return null if no reader supports the image, as {@link ImageIO#read(File)}
+	 */
+	public static BufferedImage readImage(File imageFile, int targetWidth, int targetHeight) throws IOException {
+		return readImage((Object) imageFile, targetWidth, targetHeight);
+	}
 
-				// Rotate image if needed
-				if (orientation > 1) {
-					switch (orientation) {
-						case 2: // 2) transform="-flip horizontal";
-							buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.FLIP_HORZ, NO_FILTER);
-							break;
-						case 3: // 3) transform="-rotate 180";
-							buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.CW_180, NO_FILTER);
-							break;
-						case 4: // 4) transform="-flip vertical";
-							buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.FLIP_VERT, NO_FILTER);
-							break;
-						case 5: // 5) transform="-transpose";
-							// Current library not support this
-							break;
-						case 6: // 6) transform="-rotate 90";
-							buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.CW_90, NO_FILTER);
-							break;
-						case 7: // 7) transform="-transverse";
-							// Current library not support this
-							break;
-						case 8: // 8) transform="-rotate 270";
-							buffOriginalImage = Scalr.rotate(buffOriginalImage, Scalr.Rotation.CW_270, NO_FILTER);
-							break;
-						default:
-							break;
+	private static BufferedImage readImage(Object source, int targetWidth, int targetHeight) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(source)) {
+			ImageReader reader = getImageReader(input);
+			if (reader == null) {
+				return null;
+			}
+			try {
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				// the largest scale still meeting both targets
+				double scale = Math.max((double) targetWidth / width, (double) targetHeight / height);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if (scale > 0 && scale < 1) {
+					if (param.canSetSourceRenderSize()) {
+						param.setSourceRenderSize(new Dimension((int) Math.ceil(width * scale),
+						                                        (int) Math.ceil(height * scale)));
+					} else {
+						int subsampling = Math.max(1, (int) (1 / scale));
+						param.setSourceSubsampling(subsampling, subsampling, 0, 0);
 					}
 				}
-
-			} catch (Exception e) {
-				log.error("Unable to check Image Rotated");
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
 			}
 		}
-		log.warn("Rotate image in {} ms", System.currentTimeMillis() - start);
-		return buffOriginalImage;
+	}
+
+	private static ImageReader getImageReader(ImageInputStream input) {
+		if (input == null) {
+			return null;
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if (!readers.hasNext()) {
+			return null;
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(input, true, true);
+		return reader;
 	}
 
 	public static InputStream resizeImage(InputStream input, String ext, int width, int height) throws IOException {
 
-		BufferedImage originalImage = ImageIO.read(input);
-		BufferedImage scaledImage = Scalr.resize(originalImage, Scalr.Method.SPEED, Scalr.Mode.FIT_TO_WIDTH, width,
-		                                         height, Scalr.OP_ANTIALIAS);
+		BufferedImage originalImage = readImage(input, width, 0);
+		BufferedImage scaledImage = resizeImage(originalImage, width, height);
 
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
 		ImageIO.write(scaledImage, ext, output);
 		return new ByteArrayInputStream(output.toByteArray());
 	}
 
+	public static BufferedImage resizeImage(BufferedImage image, int width, int height) {
+		return Scalr.resize(image, Scalr.Method.SPEED, Scalr.Mode.FIT_TO_WIDTH, width, height, Scalr.OP_ANTIALIAS);
+	}
+
 	/**
 	 * Will resize original image to different sizes: small, medium, large.
 	 */
 	public static String extractImageDifferentSizes(String uploadDir, String imageFullPath, String size) {
+		return extractImageDifferentSizes(uploadDir, imageFullPath, Collections.singleton(size), Runnable::run)
+				.get(size);
+	}
 
+	/**
+	 * Resize original image to several sizes at once. The image is decoded and rotated once, each size is resized
+	 * from the previous larger one (xxl -> xl -> l -> m -> s) and the files are written in parallel on the executor.
+	 *
+	 * @return path of every generated size, sizes larger than the image are skipped
+	 */
+	public static Map<String, String> extractImageDifferentSizes(String uploadDir, String imageFullPath,
+	                                                             Collection<String> sizes, Executor executor) {
+		Map<String, String> paths = new LinkedHashMap<>();
 		try {
-			// Resize to large, medium, small images and upload to cdn
-			double width = 0;
-			double height = 0;
+			long start = System.currentTimeMillis();
 			File imageFile = new File(imageFullPath);
-			BufferedImage buffImage = ImageIO.read(imageFile);
-			String baseName = FilenameUtils.getBaseName(imageFullPath);
-			String extension = FilenameUtils.getExtension(imageFullPath);
 			Metadata metadata = ImageMetadataReader.readMetadata(imageFile);
 			ExifIFD0Directory exifIFD0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-			if (exifIFD0 != null) {
-				int orientation = exifIFD0.getInt(ExifDirectoryBase.TAG_ORIENTATION);
-				Scalr.Rotation rotation = getRotation(orientation);
-				if (rotation != null) {
-					buffImage = Scalr.rotate(buffImage, rotation, Scalr.OP_ANTIALIAS);
+			Scalr.Rotation rotation = null;
+			if (exifIFD0 != null && exifIFD0.containsTag(ExifDirectoryBase.TAG_ORIENTATION)) {
+				rotation = getRotation(exifIFD0.getInt(ExifDirectoryBase.TAG_ORIENTATION));
+			}
+			boolean quarterTurn = rotation == Scalr.Rotation.CW_90 || rotation == Scalr.Rotation.CW_270;
+
+			// decode subsampled down to the largest requested size the image can produce
+			Dimension imageSize = readImageSize(imageFile);
+			int rotatedWidth = imageSize == null ? 0 : quarterTurn ? imageSize.height : imageSize.width;
+			int targetWidth = 0;
+			for (Map.Entry<String, Double> entry : SIZE_WIDTHS.entrySet()) {
+				if (sizes.contains(entry.getKey()) && entry.getValue() <= rotatedWidth) {
+					targetWidth = Math.max(targetWidth, (int) Math.ceil(entry.getValue()));
 				}
 			}
-			// generate small size
-			switch (size) {
-				case MediaConst.IMAGE_SIZE_SMALL:
-					if (buffImage.getWidth() >= IMAGE_SIZE_SMALL_WIDTH) {
-						String smallPath = String.format("%s%s_s.%s", uploadDir, baseName,
-						                                 MediaConst.EXT_JPG);
-
-						width = IMAGE_SIZE_SMALL_WIDTH;
-						height = width * buffImage.getHeight() / buffImage.getWidth();
-
-						// Resize the buffered image
-						BufferedImage resizedBufferedImage = Scalr.resize(buffImage, Scalr.Method.QUALITY, (int) width,
-						                                                  (int) height, NO_FILTER);
-
-						File smallFile = new File(smallPath);
-						if (extension.equals(MediaConst.EXT_PNG)) {
-							InputStream inputStream = convertPNGBufferedImageToInputStream(resizedBufferedImage);
-							FileOutputStream outputStream = new FileOutputStream(smallPath);
-							FileUtils.copy(inputStream, outputStream);
-						} else {
-							ImageIO.write(resizedBufferedImage, MediaConst.EXT_JPG, smallFile);
-						}
-						return smallPath;
-					}
-					break;
-				case MediaConst.IMAGE_SIZE_MEDIUM:
-					if (buffImage.getWidth() >= IMAGE_SIZE_MEDIUM_WIDTH) {
-						String mediumPath = String.format("%s%s_m.%s", uploadDir, baseName,
-						                                  MediaConst.EXT_JPG);
-
-						width = IMAGE_SIZE_MEDIUM_WIDTH;
-						height = width * buffImage.getHeight() / buffImage.getWidth();
-
-						// Resize the buffered image
-						BufferedImage resizedBufferedImage = Scalr.resize(buffImage, Scalr.Method.QUALITY, (int) width,
-						                                                  (int) height, NO_FILTER);
-
-						File mediumFile = new File(mediumPath);
-						if (extension.equals(MediaConst.EXT_PNG)) {
-							InputStream inputStream = convertPNGBufferedImageToInputStream(resizedBufferedImage);
-							FileOutputStream outputStream = new FileOutputStream(mediumPath);
-							FileUtils.copy(inputStream, outputStream);
-						} else {
-							ImageIO.write(resizedBufferedImage, MediaConst.EXT_JPG, mediumFile);
-						}
-						return mediumPath;
-					}
-					break;
-				case MediaConst.IMAGE_SIZE_LARGE:
-					if (buffImage.getWidth() >= IMAGE_SIZE_LARGE_WIDTH) {
-						String largePath = String.format("%s%s_l.%s", uploadDir, baseName,
-						                                 MediaConst.EXT_JPG);
-						width = IMAGE_SIZE_LARGE_WIDTH;
-						height = width * buffImage.getHeight() / buffImage.getWidth();
-
-						// Resize the buffered image
-						BufferedImage resizedBufferedImage = Scalr.resize(buffImage, Scalr.Method.QUALITY, (int) width,
-						                                                  (int) height, NO_FILTER);
-
-						File largeFile = new File(largePath);
-						if (extension.equals(MediaConst.EXT_PNG)) {
-							InputStream inputStream = convertPNGBufferedImageToInputStream(resizedBufferedImage);
-							FileOutputStream outputStream = new FileOutputStream(largePath);
-							FileUtils.copy(inputStream, outputStream);
-						} else {
-							ImageIO.write(resizedBufferedImage, MediaConst.EXT_JPG, largeFile);
-						}
-						return largePath;
-					}
-					break;
+			BufferedImage buffImage = quarterTurn ? readImage(imageFile, 0, targetWidth)
+			                                      : readImage(imageFile, targetWidth, 0);
+			long decoded = System.currentTimeMillis();
 
-				case MediaConst.IMAGE_SIZE_XLARGE:
-					if (buffImage.getWidth() >= IMAGE_SIZE_XLARGE_WIDTH) {
-						String xlargePath = String.format("%s%s_xl.%s", uploadDir,
-						                                  baseName,
-						                                  MediaConst.EXT_JPG);
-						width = IMAGE_SIZE_XLARGE_WIDTH;
-						height = width * buffImage.getHeight() / buffImage.getWidth();
-
-						// Resize the buffered image
-						BufferedImage resizedBufferedImage = Scalr.resize(buffImage, Scalr.Method.QUALITY, (int) width,
-						                                                  (int) height, NO_FILTER);
-
-						File xlargeFile = new File(xlargePath);
-						if (extension.equals(MediaConst.EXT_PNG)) {
-							InputStream inputStream = convertPNGBufferedImageToInputStream(resizedBufferedImage);
-							FileOutputStream outputStream = new FileOutputStream(xlargePath);
-							FileUtils.copy(inputStream, outputStream);
-						} else {
-							ImageIO.write(resizedBufferedImage, MediaConst.EXT_JPG, xlargeFile);
-						}
-						return xlargePath;
-					}
-					break;
-
-				case MediaConst.IMAGE_SIZE_XXLARGE:
-					if (buffImage.getWidth() >= IMAGE_SIZE_XXLARGE_WIDTH) {
-						String xxlargePath = String.format("%s%s_xxl.%s", uploadDir,
-						                                   baseName,
-						                                   MediaConst.EXT_JPG);
-						width = IMAGE_SIZE_XXLARGE_WIDTH;
-						height = width * buffImage.getHeight() / buffImage.getWidth();
-
-						// Resize the buffered image
-						BufferedImage resizedBufferedImage = Scalr.resize(buffImage, Scalr.Method.QUALITY, (int) width,
-						                                                  (int) height, NO_FILTER);
-
-						File xxlargeFile = new File(xxlargePath);
-						if (extension.equals(MediaConst.EXT_PNG)) {
-							InputStream inputStream = convertPNGBufferedImageToInputStream(resizedBufferedImage);
-							FileOutputStream outputStream = new FileOutputStream(xxlargePath);
-							FileUtils.copy(inputStream, outputStream);
-						} else {
-							ImageIO.write(resizedBufferedImage, MediaConst.EXT_JPG, xxlargeFile);
-						}
-						return xxlargePath;
-					}
-					break;
-
-				default:
-					break;
+			if (rotation != null) {
+				buffImage = Scalr.rotate(buffImage, rotation, Scalr.OP_ANTIALIAS);
 			}
+			long rotated = System.currentTimeMillis();
 
+			String baseName = FilenameUtils.getBaseName(imageFullPath);
+			boolean png = MediaConst.EXT_PNG.equals(FilenameUtils.getExtension(imageFullPath));
+			StringBuilder timings = new StringBuilder();
+			Map<String, CompletableFuture<Void>> writes = new LinkedHashMap<>();
+			BufferedImage source = buffImage;
+			// largest first, so every size is resized from the previous one instead of the full image
+			for (Map.Entry<String, Double> entry : SIZE_WIDTHS.entrySet()) {
+				String size = entry.getKey();
+				double width = entry.getValue();
+				if (!sizes.contains(size) || buffImage.getWidth() < width) {
+					continue;
+				}
+				long resizeStart = System.currentTimeMillis();
+				double height = width * source.getHeight() / source.getWidth();
+				// Resize the buffered image
+				BufferedImage resizedBufferedImage = Scalr.resize(source, Scalr.Method.QUALITY, (int) width,
+				                                                  (int) height, NO_FILTER);
+				timings.append(String.format(" resize %s %d ms,", size, System.currentTimeMillis() - resizeStart));
+				source = resizedBufferedImage;
+
+				String path = String.format("%s%s_%s.%s", uploadDir, baseName, size, MediaConst.EXT_JPG);
+				writes.put(size, CompletableFuture.runAsync(() -> {
+					long writeStart = System.currentTimeMillis();
+					writeResizedImage(resizedBufferedImage, path, png);
+					log.info("Write image size {} in {} ms", size, System.currentTimeMillis() - writeStart);
+				}, executor));
+				paths.put(size, path);
+			}
+			long resized = System.currentTimeMillis();
+
+			for (Map.Entry<String, CompletableFuture<Void>> write : writes.entrySet()) {
+				try {
+					write.getValue().join();
+				} catch (CompletionException e) {
+					log.error("Unable to write image size {}", write.getKey(), e.getCause());
+					paths.remove(write.getKey());
+				}
+			}
+			log.info("Extract image sizes {} of {}: decode {} ms, rotate {} ms,{} write {} ms, total {} ms",
+			         paths.keySet(), imageFile.getName(), decoded - start, rotated - decoded, timings,
+			         System.currentTimeMillis() - resized, System.currentTimeMillis() - start);
 			buffImage.getGraphics().dispose();
 		} catch (Exception e) {
 			log.error(e.getMessage(), e);
 		}
+		return paths;
+	}
 
-		return null;
+	private static void writeResizedImage(BufferedImage image, String path, boolean png) {
+		try {
+			if (png) {
+				try (InputStream inputStream = convertPNGBufferedImageToInputStream(image);
+				     FileOutputStream outputStream = new FileOutputStream(path)) {
+					FileUtils.copy(inputStream, outputStream);
+				}
+			} else {
+				ImageIO.write(image, MediaConst.EXT_JPG, new File(path));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
 	/**
 	 * Read image info from EXIF in header
 	 */
-	private static Map<Object, Object> readImageEXIF(File imageFile) {
+	public static Map<Object, Object> readImageEXIF(File imageFile) {
 
 		Map<Object, Object> map = new HashMap<>();
 
@@ -328,31 +397,37 @@ public class ImageUtils {
 
 	public static String resizeGifImage(String imageFullPath, String size, String rootUploadDirectory,
 	                                    String ffmpegPath) throws IOException {
+		return resizeGifImage(imageFullPath, size, rootUploadDirectory, ffmpegPath, TranscodeScheduler.getDefault());
+	}
+
+	public static String resizeGifImage(String imageFullPath, String size, String rootUploadDirectory,
+	                                    String ffmpegPath, TranscodeScheduler scheduler) throws IOException {
 		log.info("Start resize GIF image {}", size);
 		double width = 0;
 		double height = 0;
 		String outputPath = null;
 		File imageFile = new File(imageFullPath);
 		String baseName = FilenameUtils.getBaseName(imageFullPath);
-		BufferedImage buffImage = ImageIO.read(imageFile);
-		if (buffImage == null) {
+		// ffmpeg does the resize, only the dimensions are needed
+		Dimension imageSize = readImageSize(imageFile);
+		if (imageSize == null) {
 			return null;
 		}
 
 		switch (size) {
 			case MediaConst.IMAGE_SIZE_SMALL:
 				width = ImageUtils.IMAGE_SIZE_SMALL_WIDTH;
-				height = width * buffImage.getHeight() / buffImage.getWidth();
+				height = width * imageSize.getHeight() / imageSize.getWidth();
 				outputPath = String.format("%s%s_s.%s", rootUploadDirectory, baseName, MediaConst.EXT_GIF);
 				break;
 			case MediaConst.IMAGE_SIZE_MEDIUM:
 				width = ImageUtils.IMAGE_SIZE_MEDIUM_WIDTH;
-				height = width * buffImage.getHeight() / buffImage.getWidth();
+				height = width * imageSize.getHeight() / imageSize.getWidth();
 				outputPath = String.format("%s%s_m.%s", rootUploadDirectory, baseName, MediaConst.EXT_GIF);
 				break;
 			case MediaConst.IMAGE_SIZE_LARGE:
 				width = ImageUtils.IMAGE_SIZE_LARGE_WIDTH;
-				height = width * buffImage.getHeight() / buffImage.getWidth();
+				height = width * imageSize.getHeight() / imageSize.getWidth();
 				outputPath = String.format("%s%s_l.%s", rootUploadDirectory, baseName, MediaConst.EXT_GIF);
 				break;
 			default:
@@ -361,47 +436,44 @@ public class ImageUtils {
 
 		if (outputPath != null) {
 			String scale = String.format("scale=%f:%f", width, height);
-			String[] args = new String[]{ffmpegPath, "-i", imageFullPath, "-vf", scale, outputPath};
-			try {
-				int convertTimeout = 1; // 1 minute
-				Process p = Runtime.getRuntime().exec(args);
-				boolean status = p.waitFor(convertTimeout, TimeUnit.MINUTES);
-				if (status && new File(outputPath).exists()) {
-					log.info("Resize GIF image successfully");
-					return outputPath;
-				}
-			} catch (InterruptedException e) {
-				log.error("convert to gif error: {}", e.getMessage());
-				Thread.currentThread().interrupt();
+			int convertTimeout = 1; // 1 minute
+			CommandResult result = new ShellCommandExecutor(ffmpegPath, "-i", imageFullPath, "-vf", scale, outputPath)
+					.executeAndWait(scheduler, CommandType.ENCODE, TranscodePriority.HIGH, convertTimeout,
+					                TimeUnit.MINUTES);
+			if (result != null && !result.isTimedOut() && new File(outputPath).exists()) {
+				log.info("Resize GIF image successfully");
+				return outputPath;
 			}
+			log.error("convert to gif error: {}", result != null ? result.getStderr() : null);
 		}
 
 		return outputPath;
 	}
 
 	public static String convertHeicImage(String imageFullPath, String rootUploadDirectory, String heifConvertPath,
-	                                      Consumer<String> removeFileOnServer) {
+	                                      Consumer<String> removeFileOnServer) throws IOException {
+		return convertHeicImage(imageFullPath, rootUploadDirectory, heifConvertPath, TranscodeScheduler.getDefault(),
+		                        removeFileOnServer);
+	}
+
+	public static String convertHeicImage(String imageFullPath, String rootUploadDirectory, String heifConvertPath,
+	                                      TranscodeScheduler scheduler, Consumer<String> removeFileOnServer)
+			throws IOException {
 		log.info("Start convert HEIC image {} to JPG", imageFullPath);
 		String baseName = FilenameUtils.getBaseName(imageFullPath);
 		String outputPath = String.format("%s%s.%s", rootUploadDirectory, baseName, MediaConst.EXT_JPG);
 
-		String[] args = new String[]{heifConvertPath, imageFullPath, outputPath};
-		try {
-			int convertTimeout = 1; // 1 minute
-			Process p = Runtime.getRuntime().exec(args);
-			boolean status = p.waitFor(convertTimeout, TimeUnit.MINUTES);
-			if (status && new File(outputPath).exists()) {
-				log.info("Convert HEIC image successfully");
-				// remove file heic
-				removeFileOnServer.accept(imageFullPath);
-				return outputPath;
-			}
-		} catch (InterruptedException e) {
-			log.error("convert to HEIC error: {}", e.getMessage());
-			Thread.currentThread().interrupt();
-		} catch (IOException e) {
-			log.error("convert to HEIC error: {}", e.getMessage(), e);
+		int convertTimeout = 1; // 1 minute
+		CommandResult result = new ShellCommandExecutor(heifConvertPath, imageFullPath, outputPath)
+				.executeAndWait(scheduler, CommandType.ENCODE, TranscodePriority.HIGH, convertTimeout,
+				                TimeUnit.MINUTES);
+		if (result != null && !result.isTimedOut() && new File(outputPath).exists()) {
+			log.info("Convert HEIC image successfully");
+			// remove file heic
+			removeFileOnServer.accept(imageFullPath);
+			return outputPath;
 		}
+		log.error("convert to HEIC error: {}", result != null ? result.getStderr() : null);
 		return null;
 	}
 }
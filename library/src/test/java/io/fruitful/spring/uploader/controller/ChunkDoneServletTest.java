@@ -0,0 +1,93 @@
+package io.fruitful.spring.uploader.controller;
+
+import io.fruitful.spring.uploader.dto.ChunkDoneConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkDoneServletTest {
+
+	private static final String UUID = "6f1c2a52-8f0e-4a4e-9b1e-3d2f7c0a9b41";
+	private static final int PART_SIZE = 64 * 1024;
+	private static final int TOTAL_PARTS = 3;
+	private static final int CALLERS = 4;
+
+	@TempDir
+	File root;
+
+	@Test
+	void concurrentChunkDoneMergesOnce() throws Exception {
+		File uploadDir = new File(root, "upload");
+		File partDir = new File(uploadDir, UUID);
+		assertTrue(partDir.mkdirs());
+		byte[] content = new byte[PART_SIZE * TOTAL_PARTS];
+		new Random(42).nextBytes(content);
+		for (int i = 0; i < TOTAL_PARTS; i++) {
+			byte[] part = Arrays.copyOfRange(content, i * PART_SIZE, (i + 1) * PART_SIZE);
+			Files.write(new File(partDir, String.format("%s_%05d", UUID, i)).toPath(), part);
+		}
+
+		AtomicInteger processed = new AtomicInteger();
+		ChunkDoneConfig config = ChunkDoneConfig.builder()
+				.uploadFolder(uploadDir.getAbsolutePath())
+				.temporaryFolder(new File(root, "tmp").getAbsolutePath())
+				.mediaProcessHandler(media -> "media-" + processed.incrementAndGet())
+				.build();
+		ChunkDoneServlet servlet = new ChunkDoneServlet(config);
+		Map<String, String> params = Map.of("qquuid", UUID,
+		                                    "qqfilename", "notes.txt",
+		                                    "qqtotalparts", String.valueOf(TOTAL_PARTS),
+		                                    "qqtotalfilesize", String.valueOf(content.length));
+
+		// every caller posts chunk-done for the same upload at the same time
+		CyclicBarrier barrier = new CyclicBarrier(CALLERS);
+		ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+		List<Future<String>> responses = new ArrayList<>();
+		try {
+			for (int i = 0; i < CALLERS; i++) {
+				responses.add(executor.submit(() -> {
+					StringWriter body = new StringWriter();
+					barrier.await();
+					servlet.doPost(ServletStubs.request("POST", "application/x-www-form-urlencoded", params, Map.of()),
+					               ServletStubs.response(body));
+					return body.toString();
+				}));
+			}
+			long merged = 0;
+			for (Future<String> response : responses) {
+				if (response.get(1, TimeUnit.MINUTES).contains("\"mediaId\": \"media-1\"")) {
+					merged++;
+				}
+			}
+			assertEquals(1, merged);
+		} finally {
+			executor.shutdownNow();
+			servlet.destroy();
+		}
+
+		assertEquals(1, processed.get());
+		File[] uploaded = uploadDir.listFiles(File::isFile);
+		assertNotNull(uploaded);
+		assertEquals(1, uploaded.length);
+		assertArrayEquals(content, Files.readAllBytes(uploaded[0].toPath()));
+	}
+}
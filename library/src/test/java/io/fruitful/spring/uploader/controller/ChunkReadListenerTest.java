@@ -0,0 +1,234 @@
+package io.fruitful.spring.uploader.controller;
+
+import io.fruitful.spring.uploader.util.FileUtils;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class ChunkReadListenerTest {
+
+	// larger than a pooled stream buffer, and not a multiple of it
+	private static final int CHUNK_SIZE = 300_001;
+
+	@TempDir
+	File dir;
+
+	@Test
+	void readListenerMatchesBlockingRead() throws Exception {
+		byte[] content = randomContent();
+
+		File blockingFile = new File(dir, "blocking");
+		CheckedInputStream blockingInput = new CheckedInputStream(new ByteArrayInputStream(content), new CRC32C());
+		FileUtils.writeFile(blockingInput, blockingFile, (long) content.length);
+
+		File asyncFile = new File(dir, "async");
+		Result result = readAsync(content, asyncFile, 0);
+
+		assertArrayEquals(Files.readAllBytes(blockingFile.toPath()), Files.readAllBytes(asyncFile.toPath()));
+		assertEquals(content.length, result.bytesWritten);
+		assertEquals(blockingInput.getChecksum().getValue(), result.checksum);
+		assertTrue(result.completed);
+		assertEquals("ok", result.response);
+	}
+
+	@Test
+	void readListenerWritesAtOffset() throws Exception {
+		byte[] content = randomContent();
+		int offset = 4096;
+		File partialFile = new File(dir, "partial");
+		Files.write(partialFile.toPath(), new byte[offset + content.length]);
+
+		Result result = readAsync(content, partialFile, offset);
+
+		byte[] written = Files.readAllBytes(partialFile.toPath());
+		assertArrayEquals(new byte[offset], Arrays.copyOfRange(written, 0, offset));
+		assertArrayEquals(content, Arrays.copyOfRange(written, offset, written.length));
+		CRC32C expected = new CRC32C();
+		expected.update(content);
+		assertEquals(expected.getValue(), result.checksum);
+		assertEquals(content.length, result.bytesWritten);
+	}
+
+	@Test
+	void longerChunkFailsBeforeOverwritingTheNextPart() throws Exception {
+		byte[] content = randomContent();
+		int maxLength = content.length / 2;
+		File partialFile = new File(dir, "partial");
+		Files.write(partialFile.toPath(), new byte[content.length]);
+
+		TrickleInputStream input = new TrickleInputStream(content);
+		FileChannel channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.WRITE);
+		ChunkReadListener listener = new ChunkReadListener(
+				ServletStubs.asyncContext(ServletStubs.response(new StringWriter()), new boolean[1]), input, channel,
+				0, maxLength, false, null, (writer, failureReason) -> writer.print(failureReason));
+
+		assertThrows(IOException.class, () -> {
+			while (!input.isFinished()) {
+				input.arrive();
+				listener.onDataAvailable();
+			}
+		});
+		channel.close();
+
+		byte[] written = Files.readAllBytes(partialFile.toPath());
+		assertArrayEquals(new byte[content.length - maxLength], Arrays.copyOfRange(written, maxLength, written.length));
+	}
+
+	@Test
+	void timedOutChunkIsDroppedAndTheRequestCompleted() throws Exception {
+		byte[] content = randomContent();
+		File partFile = new File(dir, "part");
+		boolean[] dropped = new boolean[1];
+		ChunkReadListener.Completion completion = new ChunkReadListener.Completion() {
+			@Override
+			public String onComplete(long bytesWritten, long checksum) {
+				return fail("Chunk was stored");
+			}
+
+			@Override
+			public void onFailure() {
+				dropped[0] = true;
+			}
+		};
+		StringWriter body = new StringWriter();
+		boolean[] completed = new boolean[1];
+		TrickleInputStream input = new TrickleInputStream(content);
+		FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		ChunkReadListener listener = new ChunkReadListener(
+				ServletStubs.asyncContext(ServletStubs.response(body), completed), input, channel, 0, content.length,
+				false, completion, (writer, failureReason) -> writer.print(failureReason));
+
+		// the client stops sending halfway
+		input.arrive();
+		listener.onDataAvailable();
+		listener.onTimeout(null);
+		// a read error reported after the timeout is not handled twice
+		listener.onError(new IOException("Connection reset"));
+
+		assertTrue(dropped[0]);
+		assertTrue(completed[0]);
+		assertFalse(channel.isOpen());
+		assertEquals("Chunk upload timed out", body.toString());
+	}
+
+	private static byte[] randomContent() {
+		byte[] content = new byte[CHUNK_SIZE];
+		new Random(5).nextBytes(content);
+		return content;
+	}
+
+	private static Result readAsync(byte[] content, File file, long offset) throws Exception {
+		Result result = new Result();
+		ChunkReadListener.Completion completion = new ChunkReadListener.Completion() {
+			@Override
+			public String onComplete(long bytesWritten, long checksum) {
+				result.bytesWritten = bytesWritten;
+				result.checksum = checksum;
+				return null;
+			}
+
+			@Override
+			public void onFailure() {
+				fail("Chunk was not stored");
+			}
+		};
+		StringWriter body = new StringWriter();
+		boolean[] completed = new boolean[1];
+		TrickleInputStream input = new TrickleInputStream(content);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		ChunkReadListener listener = new ChunkReadListener(
+				ServletStubs.asyncContext(ServletStubs.response(body), completed), input, channel, offset,
+				content.length, false, completion,
+				(writer, failureReason) -> writer.print(failureReason == null ? "ok" : failureReason));
+
+		// the container calls back every time more data has arrived
+		while (!input.isFinished()) {
+			input.arrive();
+			listener.onDataAvailable();
+		}
+		listener.onAllDataRead();
+
+		result.completed = completed[0];
+		result.response = body.toString();
+		return result;
+	}
+
+	private static final class Result {
+		private long bytesWritten;
+		private long checksum;
+		private boolean completed;
+		private String response;
+	}
+
+	/**
+	 * Hands out the content in small uneven reads, a few reads per arrival, like a non-blocking connection.
+	 */
+	private static final class TrickleInputStream extends ServletInputStream {
+		private static final int READS_PER_ARRIVAL = 3;
+		private static final int MAX_READ = 7_919;
+
+		private final byte[] content;
+		private int position;
+		private int readable;
+
+		private TrickleInputStream(byte[] content) {
+			this.content = content;
+		}
+
+		private void arrive() {
+			readable = READS_PER_ARRIVAL;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return position == content.length;
+		}
+
+		@Override
+		public boolean isReady() {
+			return readable > 0 && !isFinished();
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			// driven by the test
+		}
+
+		@Override
+		public int read() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(byte[] buffer, int off, int len) {
+			if (isFinished()) {
+				return -1;
+			}
+			readable--;
+			int count = Math.min(Math.min(len, MAX_READ), content.length - position);
+			System.arraycopy(content, position, buffer, off, count);
+			position += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package io.fruitful.spring.uploader.controller;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Minimal servlet objects for driving the servlets without a container. Every method not listed returns the
+ * default value of its type.
+ */
+final class ServletStubs {
+
+	private ServletStubs() {
+	}
+
+	static HttpServletRequest request(String method, String contentType, Map<String, String> params,
+	                                  Map<String, String> headers) {
+		return stub(HttpServletRequest.class, (name, args) -> switch (name) {
+			case "getMethod" -> method;
+			case "getContentType" -> contentType;
+			case "getParameter" -> params.get((String) args[0]);
+			case "getParameterNames" -> Collections.enumeration(params.keySet());
+			case "getHeader" -> headers.get((String) args[0]);
+			default -> null;
+		});
+	}
+
+	static HttpServletResponse response(StringWriter body) {
+		PrintWriter writer = new PrintWriter(body, true);
+		return stub(HttpServletResponse.class, (name, args) -> "getWriter".equals(name) ? writer : null);
+	}
+
+	/**
+	 * @param completed set to true once the context is completed
+	 */
+	static AsyncContext asyncContext(HttpServletResponse response, boolean[] completed) {
+		return stub(AsyncContext.class, (name, args) -> {
+			if ("complete".equals(name)) {
+				completed[0] = true;
+			}
+			return "getResponse".equals(name) ? response : null;
+		});
+	}
+
+	private static <T> T stub(Class<T> type, Answer answer) {
+		Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (instance, method, args) -> {
+			Object value = answer.apply(method.getName(), args);
+			return value != null ? value : defaultValue(method.getReturnType());
+		});
+		return type.cast(proxy);
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		// the zero of a primitive, read from a one element array of it
+		return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+	}
+
+	@FunctionalInterface
+	private interface Answer {
+		Object apply(String method, Object[] args);
+	}
+}
@@ -0,0 +1,93 @@
+package io.fruitful.spring.uploader.enumeration;
+
+import io.fruitful.spring.uploader.constant.MediaConst;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSupportEnumTest {
+
+	@Test
+	void listedTypesResolveAsBefore() {
+		for (FileSupportEnum category : FileSupportEnum.values()) {
+			for (String type : category.getTypes().split(",")) {
+				String contentType = type.trim();
+				if (contentType.isEmpty()) {
+					continue;
+				}
+				for (String variant : List.of(contentType, contentType.toUpperCase(Locale.ROOT))) {
+					assertEquals(baselineFileType(variant), FileSupportEnum.getFileType(variant), variant);
+				}
+				assertTrue(category.supports(contentType), contentType);
+			}
+		}
+	}
+
+	@Test
+	void unknownTypesResolveToNothing() {
+		assertNull(FileSupportEnum.getFileType(null));
+		assertNull(FileSupportEnum.getFileType("application/pdf"));
+		assertNull(FileSupportEnum.getFileSupport("text/plain"));
+		assertTrue(FileSupportEnum.getCategories("application/octet-stream").isEmpty());
+	}
+
+	@Test
+	void typesListedByTwoCategoriesResolveToTheFirst() {
+		assertEquals(Set.of(FileSupportEnum.IMAGE, FileSupportEnum.GIF_IMAGE),
+		             FileSupportEnum.getCategories("image/gif"));
+		assertEquals(FileSupportEnum.IMAGE.name(), FileSupportEnum.getFileType("image/gif"));
+		assertEquals(FileSupportEnum.IMAGE.name(), FileSupportEnum.getFileType("image/jpeg"));
+	}
+
+	@Test
+	void extensionsMatchTheExtensionLists() {
+		for (String ext : MediaConst.EXT_STATIC_IMAGE) {
+			assertTrue(FileSupportEnum.READABLE_IMAGE.supportsExtension(ext), ext);
+			assertTrue(FileSupportEnum.READABLE_IMAGE.supportsExtension(ext.toUpperCase(Locale.ROOT)), ext);
+		}
+		for (String ext : MediaConst.EXT_AUDIO) {
+			assertTrue(FileSupportEnum.AUDIO.supportsExtension(ext), ext);
+		}
+		for (String ext : MediaConst.EXT_VIDEO) {
+			assertTrue(FileSupportEnum.VIDEO.supportsExtension(ext), ext);
+		}
+		assertTrue(FileSupportEnum.GIF_IMAGE.supportsExtension(MediaConst.EXT_GIF));
+		assertTrue(FileSupportEnum.HEIC_IMAGE.supportsExtension(MediaConst.HEIC_MINE_TYPE));
+		assertFalse(FileSupportEnum.READABLE_IMAGE.supportsExtension(MediaConst.EXT_GIF));
+		assertFalse(FileSupportEnum.VIDEO.supportsExtension(MediaConst.EXT_MP3));
+		assertTrue(FileSupportEnum.getCategoriesByExtension(MediaConst.EXT_PDF).isEmpty());
+		assertTrue(FileSupportEnum.getCategoriesByExtension(null).isEmpty());
+	}
+
+	@Test
+	void registeredTypesAreAdded() {
+		FileSupportEnum.register(Map.of(FileSupportEnum.VIDEO, List.of("video/x-test-webm", "testwebm")));
+
+		assertEquals(FileSupportEnum.VIDEO.name(), FileSupportEnum.getFileType("video/x-test-webm"));
+		assertTrue(FileSupportEnum.VIDEO.supportsExtension("testwebm"));
+		// built-in types are kept
+		assertEquals(FileSupportEnum.VIDEO.name(), FileSupportEnum.getFileType("video/mp4"));
+	}
+
+	/**
+	 * The lookup before the index: the first category whose type list contains the content type.
+	 */
+	private static String baselineFileType(String contentType) {
+		if (contentType != null) {
+			for (FileSupportEnum item : FileSupportEnum.values()) {
+				if (item.getTypes().toLowerCase().contains(contentType.toLowerCase())) {
+					return item.name();
+				}
+			}
+		}
+		return null;
+	}
+}
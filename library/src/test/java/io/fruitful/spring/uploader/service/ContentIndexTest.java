@@ -0,0 +1,86 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.dto.ContentIndexEntry;
+import io.fruitful.spring.uploader.dto.MediaInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentIndexTest {
+
+	private static final String CHECKSUM = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+	private static final long UPLOADED_SIZE = 1234;
+
+	@TempDir
+	File dir;
+
+	private File uploadDir;
+	private ContentIndex index;
+
+	@BeforeEach
+	void createIndex() {
+		uploadDir = new File(dir, "upload");
+		assertTrue(uploadDir.mkdirs());
+		index = new ContentIndex(new File(dir, "index"));
+	}
+
+	@Test
+	void convertedUploadIsFoundByItsUploadedContent() throws Exception {
+		// the upload was converted and deleted, only the converted file is left
+		File converted = write("a1b2.heic.png", "converted image");
+		MediaInfo media = media(converted.getName(), converted.getName(), null);
+
+		index.put(CHECKSUM, UPLOADED_SIZE, converted, false, media);
+
+		ContentIndexEntry entry = index.find(CHECKSUM, UPLOADED_SIZE);
+		assertNotNull(entry);
+		assertEquals(converted.getAbsolutePath(), entry.getBlobPath());
+		assertNull(index.find(CHECKSUM, converted.length()));
+	}
+
+	@Test
+	void processingMediaIsReusedAndUpdatedOnceDone() throws Exception {
+		File video = write("c3d4.mov", "video");
+		index.put(CHECKSUM, UPLOADED_SIZE, video, false, media(video.getName(), "c3d4.mp4", true));
+
+		MediaInfo reused = index.reuse(index.find(CHECKSUM, UPLOADED_SIZE), uploadDir, "guid", "copy.mov");
+		assertEquals(Boolean.TRUE, reused.getProcessing());
+		// processed from its own link, into an output named after it
+		assertTrue(new File(uploadDir, reused.getFilename()).exists());
+		assertEquals(reused.getFilename().replace(".mov", ".mp4"), reused.getUrl());
+
+		File converted = write("c3d4.mp4", "converted video");
+		index.update(CHECKSUM, UPLOADED_SIZE, converted, media(converted.getName(), converted.getName(), null));
+
+		ContentIndexEntry entry = index.find(CHECKSUM, UPLOADED_SIZE);
+		assertNotNull(entry);
+		assertEquals(converted.getAbsolutePath(), entry.getBlobPath());
+		assertNull(entry.getMedia().getProcessing());
+		assertEquals(UPLOADED_SIZE, entry.getSize());
+	}
+
+	private File write(String name, String content) throws Exception {
+		File file = new File(uploadDir, name);
+		Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+		return file;
+	}
+
+	private static MediaInfo media(String filename, String url, Boolean processing) {
+		MediaInfo media = new MediaInfo();
+		media.setFilename(filename);
+		media.setUrl(url);
+		media.setProcessing(processing);
+		media.setChecksum(CHECKSUM);
+		media.setSize(UPLOADED_SIZE);
+		return media;
+	}
+}
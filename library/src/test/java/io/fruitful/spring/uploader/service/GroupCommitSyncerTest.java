@@ -0,0 +1,107 @@
+package io.fruitful.spring.uploader.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitSyncerTest {
+
+	private static final int FILES = 16;
+	private static final Duration NO_HANG = Duration.ofSeconds(30);
+
+	@TempDir
+	File dir;
+
+	@Test
+	void concurrentSyncsShareBatches() throws Exception {
+		GroupCommitSyncer syncer = new GroupCommitSyncer(200);
+		CyclicBarrier barrier = new CyclicBarrier(FILES);
+		ExecutorService executor = Executors.newFixedThreadPool(FILES);
+		try {
+			List<Future<?>> syncs = new ArrayList<>();
+			for (int i = 0; i < FILES; i++) {
+				File file = createFile("file" + i);
+				syncs.add(executor.submit(() -> {
+					barrier.await();
+					syncer.sync(file);
+					return null;
+				}));
+			}
+			for (Future<?> sync : syncs) {
+				sync.get(NO_HANG.toSeconds(), TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+			syncer.shutdown();
+		}
+
+		assertTrue(syncer.getBatches() >= 1);
+		assertTrue(syncer.getBatches() < FILES, "syncs were not batched: " + syncer.getBatches() + " batches");
+	}
+
+	@Test
+	void shutdownSyncsWaitingCallers() throws Exception {
+		// no batch runs on its own before the shutdown
+		GroupCommitSyncer syncer = new GroupCommitSyncer(TimeUnit.HOURS.toMillis(1));
+		File file = createFile("waiting");
+		CompletableFuture<Void> sync = CompletableFuture.runAsync(() -> {
+			try {
+				syncer.sync(file);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(100);
+
+		syncer.shutdown();
+
+		sync.get(NO_HANG.toSeconds(), TimeUnit.SECONDS);
+	}
+
+	@Test
+	void syncAfterShutdownDoesNotWait() throws Exception {
+		GroupCommitSyncer syncer = new GroupCommitSyncer(TimeUnit.HOURS.toMillis(1));
+		syncer.shutdown();
+		File file = createFile("late");
+
+		assertTimeoutPreemptively(NO_HANG, () -> syncer.sync(file));
+		assertEquals(0, syncer.getBatches());
+	}
+
+	@Test
+	void failedSyncIsReportedToItsCaller() throws Exception {
+		GroupCommitSyncer syncer = new GroupCommitSyncer(10);
+		try {
+			File missing = new File(dir, "missing");
+			assertTimeoutPreemptively(NO_HANG, () -> assertThrows(IOException.class, () -> syncer.sync(missing)));
+			// the syncer keeps working after a failure
+			File file = createFile("after-failure");
+			assertTimeoutPreemptively(NO_HANG, () -> syncer.sync(file));
+		} finally {
+			syncer.shutdown();
+		}
+	}
+
+	private File createFile(String name) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), name.getBytes());
+		return file;
+	}
+}
@@ -0,0 +1,74 @@
+package io.fruitful.spring.uploader.service;
+
+import io.fruitful.spring.uploader.dto.CommandResult;
+import io.fruitful.spring.uploader.enumeration.CommandType;
+import io.fruitful.spring.uploader.enumeration.TranscodePriority;
+import io.fruitful.spring.uploader.exception.TranscodeRejectedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ShellCommandExecutorTest {
+
+	@BeforeEach
+	void requireShell() {
+		assumeTrue(new File("/bin/sh").canExecute(), "needs a POSIX shell");
+	}
+
+	@Test
+	void scheduledCommandRunsAndReturnsItsOutput() throws Exception {
+		TranscodeScheduler scheduler = new TranscodeScheduler(1, 1, 1, TimeUnit.MINUTES.toMillis(1));
+
+		CommandResult result = new ShellCommandExecutor("/bin/sh", "-c", "echo done")
+				.executeAndWait(scheduler, CommandType.ENCODE, TranscodePriority.HIGH, 1, TimeUnit.MINUTES);
+
+		assertNotNull(result);
+		assertTrue(result.isSuccess());
+		assertEquals("done", result.getStdout().trim());
+	}
+
+	@Test
+	void rejectedCommandFailsInsteadOfReturningNoOutput() {
+		// one encode at a time and nowhere to wait
+		TranscodeScheduler scheduler = new TranscodeScheduler(1, 1, 0, TimeUnit.MINUTES.toMillis(1));
+		CompletableFuture<CommandResult> running = new ShellCommandExecutor("/bin/sh", "-c", "sleep 30")
+				.executeAsync(scheduler, CommandType.ENCODE, TranscodePriority.LOW, 1, TimeUnit.MINUTES);
+		try {
+			IOException rejected = assertThrows(IOException.class, () -> new ShellCommandExecutor(
+					"/bin/sh", "-c", "echo done")
+					.executeAndWait(scheduler, CommandType.ENCODE, TranscodePriority.HIGH, 1, TimeUnit.MINUTES));
+			assertTrue(rejected.getCause() instanceof TranscodeRejectedException);
+		} finally {
+			running.cancel(true);
+		}
+	}
+
+	@Test
+	void queuedCommandFailsAtItsDeadlineWhileTheSlotIsBusy() {
+		// one encode at a time, waiting at most 200 ms
+		TranscodeScheduler scheduler = new TranscodeScheduler(1, 1, 1, 200);
+		CompletableFuture<CommandResult> running = new ShellCommandExecutor("/bin/sh", "-c", "sleep 30")
+				.executeAsync(scheduler, CommandType.ENCODE, TranscodePriority.LOW, 1, TimeUnit.MINUTES);
+		try {
+			long start = System.currentTimeMillis();
+			IOException expired = assertThrows(IOException.class, () -> new ShellCommandExecutor(
+					"/bin/sh", "-c", "echo done")
+					.executeAndWait(scheduler, CommandType.ENCODE, TranscodePriority.HIGH, 1, TimeUnit.MINUTES));
+			assertTrue(expired.getCause() instanceof TranscodeRejectedException);
+			assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(10));
+			assertEquals(1, scheduler.getMetrics(CommandType.ENCODE).getExpired());
+		} finally {
+			running.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package io.fruitful.spring.uploader.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Thumbnail extraction against a stand-in for ffmpeg: a shell script writing a fixed frame to its last argument.
+ * The manifest wait of the streaming output is driven by hand.
+ */
+class VideoProcessorTest {
+
+	private static final byte[] FRAME = "frame".getBytes(StandardCharsets.US_ASCII);
+
+	@TempDir
+	File dir;
+
+	private File outputDir;
+
+	@BeforeEach
+	void createOutputDir() {
+		outputDir = new File(dir, "output");
+		assumeTrue(outputDir.mkdirs());
+		assumeTrue(new File("/bin/sh").canExecute(), "needs a POSIX shell");
+	}
+
+	@Test
+	void thumbnailReplacesExistingDestination() throws Exception {
+		File destination = new File(outputDir, "video_thumb.jpg");
+		Files.write(destination.toPath(), "stale thumbnail".getBytes(StandardCharsets.US_ASCII));
+		VideoProcessor processor = new VideoProcessor(fakeFfmpeg("printf frame > \"$output\""));
+
+		File thumbnail = processor.process(new File(dir, "video.mp4").getAbsolutePath(),
+		                                   destination.getAbsolutePath(), "00:00:01");
+
+		assertNotNull(thumbnail);
+		assertEquals(destination.getAbsolutePath(), thumbnail.getAbsolutePath());
+		assertArrayEquals(FRAME, Files.readAllBytes(destination.toPath()));
+		// the scratch file was moved, nothing else is left next to the destination
+		assertArrayEquals(new String[]{destination.getName()}, outputDir.list());
+	}
+
+	@Test
+	void failedExtractionKeepsDestinationAndDropsScratchFile() throws Exception {
+		File destination = new File(outputDir, "video_thumb.jpg");
+		byte[] previous = "previous thumbnail".getBytes(StandardCharsets.US_ASCII);
+		Files.write(destination.toPath(), previous);
+		// ffmpeg failing after creating an empty output
+		VideoProcessor processor = new VideoProcessor(fakeFfmpeg(": > \"$output\"; exit 1"));
+
+		File thumbnail = processor.process(new File(dir, "video.mp4").getAbsolutePath(),
+		                                   destination.getAbsolutePath(), "00:00:01");
+
+		assertNull(thumbnail);
+		assertArrayEquals(previous, Files.readAllBytes(destination.toPath()));
+		assertArrayEquals(new String[]{destination.getName()}, outputDir.list());
+	}
+
+	@Test
+	void manifestIsReportedOnceWritten() throws Exception {
+		File manifest = new File(outputDir, "master.m3u8");
+		CompletableFuture<File> encode = new CompletableFuture<>();
+
+		CompletableFuture<File> written = VideoProcessor.awaitManifest(manifest, encode);
+		assertFalse(written.isDone());
+		Files.writeString(manifest.toPath(), "#EXTM3U\n");
+
+		// the encode is still running
+		assertEquals(manifest, written.get(10, TimeUnit.SECONDS));
+		assertFalse(encode.isDone());
+	}
+
+	@Test
+	void encodeEndingWithoutManifestStopsTheWait() throws Exception {
+		File manifest = new File(outputDir, "master.m3u8");
+		CompletableFuture<File> encode = new CompletableFuture<>();
+
+		CompletableFuture<File> written = VideoProcessor.awaitManifest(manifest, encode);
+		encode.completeExceptionally(new IllegalStateException("ffmpeg exited with 1"));
+
+		assertNull(written.get(10, TimeUnit.SECONDS));
+	}
+
+	private String fakeFfmpeg(String write) throws Exception {
+		File script = new File(dir, "ffmpeg");
+		Files.writeString(script.toPath(), "#!/bin/sh\nfor output; do :; done\n" + write + "\n");
+		assumeTrue(script.setExecutable(true));
+		return script.getAbsolutePath();
+	}
+}
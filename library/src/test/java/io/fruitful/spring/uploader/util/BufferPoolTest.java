@@ -0,0 +1,86 @@
+package io.fruitful.spring.uploader.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTest {
+
+	private static final int BUFFER_SIZE = 1024;
+
+	@Test
+	void leasedBufferIsClearedAndReused() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 2, 8, true);
+
+		ByteBuffer first;
+		try (BufferPool.Lease lease = pool.acquire()) {
+			first = lease.buffer();
+			assertTrue(first.isDirect());
+			assertEquals(BUFFER_SIZE, first.capacity());
+			first.put(new byte[100]).flip();
+		}
+		try (BufferPool.Lease lease = pool.acquire()) {
+			// same thread, same stripe: the returned buffer comes back cleared
+			assertSame(first, lease.buffer());
+			assertEquals(0, lease.buffer().position());
+			assertEquals(BUFFER_SIZE, lease.buffer().limit());
+		}
+		assertEquals(1, pool.getAllocated());
+	}
+
+	@Test
+	void concurrentLeasesGetDistinctBuffers() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 2, 8, false);
+
+		try (BufferPool.Lease first = pool.acquire(); BufferPool.Lease second = pool.acquire()) {
+			assertNotSame(first.buffer(), second.buffer());
+			assertEquals(BUFFER_SIZE, first.array().length);
+		}
+	}
+
+	@Test
+	void leasesBeyondTheCapFallBackToHeap() {
+		int maxBuffers = 3;
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 1, maxBuffers, true);
+		List<BufferPool.Lease> leases = new ArrayList<>();
+		for (int i = 0; i < maxBuffers; i++) {
+			leases.add(pool.acquire());
+		}
+
+		BufferPool.Lease overflow = pool.acquire();
+		assertFalse(overflow.buffer().isDirect());
+		assertEquals(maxBuffers, pool.getAllocated());
+		overflow.close();
+		assertEquals(maxBuffers, pool.getAllocated());
+
+		// only one buffer fits the stripe of this thread, the others are dropped
+		leases.forEach(BufferPool.Lease::close);
+		assertEquals(1, pool.getAllocated());
+		try (BufferPool.Lease lease = pool.acquire()) {
+			assertTrue(lease.buffer().isDirect());
+		}
+	}
+
+	@Test
+	void closingTwiceReturnsTheBufferOnce() {
+		BufferPool pool = new BufferPool(BUFFER_SIZE, 2, 8, false);
+
+		BufferPool.Lease lease = pool.acquire();
+		lease.close();
+		lease.close();
+
+		assertNull(lease.buffer());
+		try (BufferPool.Lease first = pool.acquire(); BufferPool.Lease second = pool.acquire()) {
+			assertNotSame(first.buffer(), second.buffer());
+		}
+	}
+}
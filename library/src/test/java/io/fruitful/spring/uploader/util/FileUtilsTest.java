@@ -0,0 +1,53 @@
+package io.fruitful.spring.uploader.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class FileUtilsTest {
+
+	@TempDir
+	File dir;
+
+	@Test
+	void mergeWithDigestWritesSameBytes() throws Exception {
+		// parts around the pooled buffer size, one of them empty
+		int[] sizes = {FileUtils.FILE_BUFFERS.getBufferSize() + 17, 0, 3, FileUtils.FILE_BUFFERS.getBufferSize()};
+		Random random = new Random(7);
+		File[] parts = new File[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] content = new byte[sizes[i]];
+			random.nextBytes(content);
+			parts[i] = new File(dir, "part_" + i);
+			Files.write(parts[i].toPath(), content);
+		}
+
+		File transferred = new File(dir, "transferred");
+		FileUtils.mergeParts(parts, transferred);
+		File digested = new File(dir, "digested");
+		MessageDigest digest = ChecksumHelper.newFileDigest();
+		FileUtils.mergeParts(parts, digested, digest);
+
+		byte[] expected = Files.readAllBytes(transferred.toPath());
+		assertArrayEquals(expected, Files.readAllBytes(digested.toPath()));
+		assertArrayEquals(ChecksumHelper.newFileDigest().digest(expected), digest.digest());
+	}
+
+	@Test
+	void mergeReplacesExistingOutput() throws Exception {
+		File part = new File(dir, "part_0");
+		Files.write(part.toPath(), new byte[]{1, 2, 3});
+		File output = new File(dir, "output");
+		Files.write(output.toPath(), new byte[]{9, 9, 9, 9, 9});
+
+		FileUtils.mergeParts(new File[]{part}, output);
+
+		assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(output.toPath()));
+	}
+}
@@ -0,0 +1,138 @@
+package io.fruitful.spring.uploader.util;
+
+import io.fruitful.spring.uploader.constant.MediaConst;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImagePipelineTest {
+
+	private static final int STORED_WIDTH = 1600;
+	private static final int STORED_HEIGHT = 800;
+	private static final int ORIENTATION_ROTATE_90 = 6;
+
+	@TempDir
+	File dir;
+
+	@Test
+	void thumbnailOfImageWithoutExif() throws Exception {
+		File image = writeJpeg("plain.jpg", null);
+
+		ImagePipeline pipeline = ImagePipeline.open(image, true, ImageUtils.THUMBNAIL_WIDTH);
+
+		assertEquals(STORED_WIDTH, pipeline.getWidth());
+		assertEquals(STORED_HEIGHT, pipeline.getHeight());
+		assertThumbnail(pipeline, ImageUtils.THUMBNAIL_WIDTH, 250);
+	}
+
+	@Test
+	void thumbnailOfUprightExifImage() throws Exception {
+		File image = writeJpeg("upright.jpg", 1);
+
+		ImagePipeline pipeline = ImagePipeline.open(image, true, ImageUtils.THUMBNAIL_WIDTH);
+
+		assertEquals(STORED_WIDTH, pipeline.getWidth());
+		assertEquals(STORED_HEIGHT, pipeline.getHeight());
+		assertThumbnail(pipeline, ImageUtils.THUMBNAIL_WIDTH, 250);
+	}
+
+	@Test
+	void thumbnailOfRotatedExifImage() throws Exception {
+		File image = writeJpeg("rotated.jpg", ORIENTATION_ROTATE_90);
+
+		ImagePipeline pipeline = ImagePipeline.open(image, true, ImageUtils.THUMBNAIL_WIDTH);
+
+		// dimensions as displayed, the stored ones swapped
+		assertEquals(STORED_HEIGHT, pipeline.getWidth());
+		assertEquals(STORED_WIDTH, pipeline.getHeight());
+		assertThumbnail(pipeline, ImageUtils.THUMBNAIL_WIDTH, 1000);
+	}
+
+	@Test
+	void rotatedImageIsDecodedAtDisplayedWidth() throws Exception {
+		File image = writeJpeg("subsampled.jpg", ORIENTATION_ROTATE_90);
+
+		ImagePipeline pipeline = ImagePipeline.open(image, true, ImageUtils.THUMBNAIL_WIDTH);
+
+		// subsampled against the stored width the thumbnail would have to be upscaled
+		assertTrue(pipeline.getImage().getWidth() >= ImageUtils.THUMBNAIL_WIDTH);
+		assertTrue(pipeline.getImage().getHeight() > pipeline.getImage().getWidth());
+	}
+
+	@Test
+	void originalUploadKeepsStoredOrientation() throws Exception {
+		File image = writeJpeg("original.jpg", ORIENTATION_ROTATE_90);
+
+		ImagePipeline pipeline = ImagePipeline.open(image, false, ImageUtils.THUMBNAIL_WIDTH);
+
+		assertEquals(STORED_WIDTH, pipeline.getWidth());
+		assertEquals(STORED_HEIGHT, pipeline.getHeight());
+		assertThumbnail(pipeline, ImageUtils.THUMBNAIL_WIDTH, 250);
+	}
+
+	private void assertThumbnail(ImagePipeline pipeline, int width, int height) throws IOException {
+		ImagePipeline.Rendition thumbnail = pipeline.writeThumbnail(dir, MediaConst.EXT_JPG,
+		                                                            ImageUtils.THUMBNAIL_WIDTH, 0);
+		assertNotNull(thumbnail);
+		assertEquals(width, thumbnail.getWidth());
+		assertEquals(height, thumbnail.getHeight());
+		BufferedImage written = ImageIO.read(thumbnail.getFile());
+		assertEquals(width, written.getWidth());
+		assertEquals(height, written.getHeight());
+	}
+
+	/**
+	 * Write a JPEG of the stored size, with an EXIF orientation when one is given.
+	 */
+	private File writeJpeg(String name, Integer orientation) throws IOException {
+		BufferedImage image = new BufferedImage(STORED_WIDTH, STORED_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < STORED_HEIGHT; y++) {
+			for (int x = 0; x < STORED_WIDTH; x++) {
+				image.setRGB(x, y, (x * 255 / STORED_WIDTH) << 16 | (y * 255 / STORED_HEIGHT) << 8);
+			}
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(image, MediaConst.EXT_JPG, output);
+		byte[] jpeg = output.toByteArray();
+		if (orientation != null) {
+			jpeg = insertExifOrientation(jpeg, orientation);
+		}
+		File file = new File(dir, name);
+		Files.write(file.toPath(), jpeg);
+		return file;
+	}
+
+	/**
+	 * Insert an APP1 segment holding only the orientation tag right after the JFIF segment written by ImageIO.
+	 */
+	private static byte[] insertExifOrientation(byte[] jpeg, int orientation) {
+		// SOI, then APP0 whose length follows its marker
+		int app0End = 4 + ((jpeg[4] & 0xFF) << 8 | (jpeg[5] & 0xFF));
+		ByteBuffer tiff = ByteBuffer.allocate(26);
+		tiff.put("MM".getBytes(StandardCharsets.US_ASCII)).putShort((short) 42).putInt(8);
+		// one IFD0 entry: orientation, SHORT, count 1, value left aligned
+		tiff.putShort((short) 1).putShort((short) 0x0112).putShort((short) 3).putInt(1)
+				.putShort((short) orientation).putShort((short) 0);
+		tiff.putInt(0);
+		byte[] header = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer app1 = ByteBuffer.allocate(4 + header.length + tiff.capacity());
+		app1.putShort((short) 0xFFE1).putShort((short) (2 + header.length + tiff.capacity())).put(header)
+				.put(tiff.array());
+
+		ByteBuffer result = ByteBuffer.allocate(jpeg.length + app1.capacity());
+		result.put(jpeg, 0, app0End).put(app1.array()).put(jpeg, app0End, jpeg.length - app0End);
+		return result.array();
+	}
+}